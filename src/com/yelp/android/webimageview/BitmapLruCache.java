@@ -0,0 +1,188 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A strictly bounded in-memory bitmap cache. Every entry is weighed by the
+ * number of bytes backing its pixels and the least recently used entries are
+ * evicted as soon as the total weight exceeds the configured budget. Unlike a
+ * soft-valued map, nothing is dropped behind our back at GC time, so hit rates
+ * are predictable.
+ *
+ * @param <K> The type of key used to look up bitmaps
+ */
+public class BitmapLruCache<K> {
+
+	private final LinkedHashMap<K, Bitmap> mMap;
+	private final int mMaxSize;
+	private int mSize;
+
+	/**
+	 * @param maxSize The maximum number of pixel bytes to hold in memory.
+	 */
+	public BitmapLruCache(int initialCapacity, int maxSize) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize <= 0");
+		}
+		mMaxSize = maxSize;
+		// Kept in insertion order, get() re-inserts entries it hits so that
+		// iteration starts at the least recently used entry
+		mMap = new LinkedHashMap<K, Bitmap>(initialCapacity);
+	}
+
+	/**
+	 * Returns the bitmap for key, marking it as the most recently used, or
+	 * null if it isn't cached.
+	 */
+	public synchronized Bitmap get(K key) {
+		Bitmap bitmap = mMap.remove(key);
+		if (bitmap != null) {
+			mMap.put(key, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Returns the bitmap for key without marking it as recently used, or null
+	 * if it isn't cached.
+	 */
+	public synchronized Bitmap peek(K key) {
+		return mMap.get(key);
+	}
+
+	/**
+	 * Caches the bitmap for key, evicting least recently used entries until
+	 * the cache fits its budget again. A bitmap bigger than the whole budget is
+	 * not cached at all.
+	 * @return The bitmap previously cached for key, if any.
+	 */
+	public Bitmap put(K key, Bitmap bitmap) {
+		if (key == null || bitmap == null) {
+			throw new NullPointerException("key == null || bitmap == null");
+		}
+		int size = sizeOf(bitmap);
+		Bitmap previous;
+		List<Map.Entry<K, Bitmap>> evicted;
+		synchronized (this) {
+			if (size > mMaxSize) {
+				previous = mMap.remove(key);
+				if (previous != null) {
+					mSize -= sizeOf(previous);
+				}
+				evicted = null;
+			} else {
+				previous = mMap.remove(key);
+				mMap.put(key, bitmap);
+				mSize += size;
+				if (previous != null) {
+					mSize -= sizeOf(previous);
+				}
+				evicted = trimToSize(mMaxSize);
+			}
+		}
+		if (previous != null && previous != bitmap) {
+			entryRemoved(false, key, previous);
+		}
+		notifyEvicted(evicted);
+		return previous;
+	}
+
+	/**
+	 * Removes the entry for key if it exists.
+	 * @return The bitmap that was cached for key, or null.
+	 */
+	public Bitmap remove(K key) {
+		Bitmap previous;
+		synchronized (this) {
+			previous = mMap.remove(key);
+			if (previous != null) {
+				mSize -= sizeOf(previous);
+			}
+		}
+		if (previous != null) {
+			entryRemoved(false, key, previous);
+		}
+		return previous;
+	}
+
+	/**
+	 * Evicts every entry from the cache.
+	 */
+	public void evictAll() {
+		List<Map.Entry<K, Bitmap>> evicted;
+		synchronized (this) {
+			evicted = trimToSize(0);
+		}
+		notifyEvicted(evicted);
+	}
+
+	/**
+	 * @return The number of pixel bytes currently held by this cache.
+	 */
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public int maxSize() {
+		return mMaxSize;
+	}
+
+	/**
+	 * Called outside of the cache lock whenever an entry leaves the cache.
+	 * @param evicted true if the entry was removed to make room, false if it
+	 *        was replaced or explicitly removed.
+	 */
+	protected void entryRemoved(boolean evicted, K key, Bitmap bitmap) {
+	}
+
+	private List<Map.Entry<K, Bitmap>> trimToSize(int maxSize) {
+		List<Map.Entry<K, Bitmap>> evicted = null;
+		Iterator<Map.Entry<K, Bitmap>> iterator = mMap.entrySet().iterator();
+		while (mSize > maxSize && iterator.hasNext()) {
+			Map.Entry<K, Bitmap> eldest = iterator.next();
+			iterator.remove();
+			mSize -= sizeOf(eldest.getValue());
+			if (evicted == null) {
+				evicted = new ArrayList<Map.Entry<K, Bitmap>>();
+			}
+			evicted.add(eldest);
+		}
+		return evicted;
+	}
+
+	private void notifyEvicted(List<Map.Entry<K, Bitmap>> evicted) {
+		if (evicted != null) {
+			for (Map.Entry<K, Bitmap> entry : evicted) {
+				entryRemoved(true, entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * The weight of a bitmap: the bytes between rows times the number of rows.
+	 */
+	static int sizeOf(Bitmap bitmap) {
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+}
@@ -0,0 +1,174 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.WeakHashMap;
+
+/**
+ * A pool of mutable bitmaps that can be handed to the decoder as
+ * BitmapFactory.Options.inBitmap, keyed by width, height and config. The pool
+ * is filled with bitmaps evicted from the in-memory cache, but only once
+ * nothing can still be drawing them: bitmaps are reference counted while they
+ * are being delivered or displayed by a {@link WebImageView}, and bitmaps that
+ * were handed to code we can't track are never reused.
+ */
+public class BitmapPool {
+
+	private final int mMaxSize;
+	private int mSize;
+
+	private final HashMap<String, LinkedList<Bitmap>> mBitmaps;
+	/** Every pooled bitmap, oldest first, so we know what to drop when full. */
+	private final LinkedList<Bitmap> mAge;
+	/** Bitmaps currently referenced outside of the cache */
+	private final WeakHashMap<Bitmap, Usage> mUsage;
+
+	private static class Usage {
+		int references;
+		boolean escaped;
+		boolean evicted;
+	}
+
+	/**
+	 * @param maxSize The maximum number of pixel bytes to hold on to for reuse.
+	 */
+	public BitmapPool(int maxSize) {
+		mMaxSize = maxSize;
+		mBitmaps = new HashMap<String, LinkedList<Bitmap>>();
+		mAge = new LinkedList<Bitmap>();
+		mUsage = new WeakHashMap<Bitmap, Usage>();
+	}
+
+	/**
+	 * Removes and returns a pooled bitmap of exactly the given dimensions and
+	 * config, or null if there is none.
+	 */
+	public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+		LinkedList<Bitmap> bitmaps = mBitmaps.get(getKey(width, height, config));
+		if (bitmaps == null || bitmaps.isEmpty()) {
+			return null;
+		}
+		Bitmap bitmap = bitmaps.removeFirst();
+		mAge.remove(bitmap);
+		mSize -= BitmapLruCache.sizeOf(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Marks the bitmap as in use, it won't be reused until a matching call to
+	 * {@link #release(Bitmap)}.
+	 */
+	public synchronized void acquire(Bitmap bitmap) {
+		if (bitmap != null) {
+			getUsage(bitmap).references++;
+		}
+	}
+
+	/**
+	 * Releases a reference taken with {@link #acquire(Bitmap)}. Once nothing
+	 * references a bitmap which has left the cache, it becomes available for
+	 * reuse.
+	 */
+	public synchronized void release(Bitmap bitmap) {
+		if (bitmap == null) {
+			return;
+		}
+		Usage usage = mUsage.get(bitmap);
+		if (usage == null || usage.references == 0) {
+			return;
+		}
+		usage.references--;
+		if (usage.references == 0 && usage.evicted && !usage.escaped) {
+			mUsage.remove(bitmap);
+			add(bitmap);
+		}
+	}
+
+	/**
+	 * Marks the bitmap as handed to code that doesn't acquire and release it,
+	 * so that it will never be reused.
+	 */
+	public synchronized void markEscaped(Bitmap bitmap) {
+		if (bitmap != null) {
+			getUsage(bitmap).escaped = true;
+		}
+	}
+
+	/**
+	 * Called once a bitmap has left the in-memory cache. It's pooled right
+	 * away if nothing is using it, otherwise when the last user releases it.
+	 */
+	public synchronized void offer(Bitmap bitmap) {
+		Usage usage = mUsage.get(bitmap);
+		if (usage == null) {
+			add(bitmap);
+		} else if (!usage.escaped) {
+			if (usage.references == 0) {
+				mUsage.remove(bitmap);
+				add(bitmap);
+			} else {
+				usage.evicted = true;
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mBitmaps.clear();
+		mAge.clear();
+		mSize = 0;
+	}
+
+	private void add(Bitmap bitmap) {
+		if (!bitmap.isMutable() || bitmap.isRecycled()) {
+			return;
+		}
+		int size = BitmapLruCache.sizeOf(bitmap);
+		if (size > mMaxSize) {
+			return;
+		}
+		String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+		LinkedList<Bitmap> bitmaps = mBitmaps.get(key);
+		if (bitmaps == null) {
+			bitmaps = new LinkedList<Bitmap>();
+			mBitmaps.put(key, bitmaps);
+		}
+		bitmaps.add(bitmap);
+		mAge.add(bitmap);
+		mSize += size;
+		while (mSize > mMaxSize) {
+			Bitmap eldest = mAge.removeFirst();
+			mBitmaps.get(getKey(eldest.getWidth(), eldest.getHeight(), eldest.getConfig())).remove(eldest);
+			mSize -= BitmapLruCache.sizeOf(eldest);
+		}
+	}
+
+	private Usage getUsage(Bitmap bitmap) {
+		Usage usage = mUsage.get(bitmap);
+		if (usage == null) {
+			usage = new Usage();
+			mUsage.put(bitmap, usage);
+		}
+		return usage;
+	}
+
+	private static String getKey(int width, int height, Bitmap.Config config) {
+		return width + "x" + height + ":" + config;
+	}
+}
@@ -0,0 +1,390 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A priority queue with a max length. Once it's full, every insert throws out
+ * whatever has the lowest priority, which may be the new element itself.
+ * Inserts, removals and evictions are all O(log n). Elements of equal
+ * priority come out in the order they went in.
+ * <p>
+ * Taking from the queue can be paused, see {@link #setPaused(boolean)}.
+ * </p>
+ *
+ * @param <T> The type of the contents this will hold
+ */
+class BoundPriorityBlockingQueue<T> extends AbstractQueue<T> implements BlockingQueue<T> {
+
+	private static class Entry<T> {
+		final T element;
+		/** Breaks ties between equal priorities, in insertion order */
+		final long sequence;
+
+		Entry(T element, long sequence) {
+			this.element = element;
+			this.sequence = sequence;
+		}
+	}
+
+	private final int mMaxSize;
+	private final Comparator<? super T> mComparator;
+	private final ReentrantLock mLock = new ReentrantLock();
+	private final Condition mAvailable = mLock.newCondition();
+	/** Ordered from the highest priority to the lowest. Guarded by mLock */
+	private final TreeSet<Entry<T>> mEntries;
+	/** Finds the entry of an element for removal. Guarded by mLock */
+	private final IdentityHashMap<T, Entry<T>> mIndex = new IdentityHashMap<T, Entry<T>>();
+	private long mSequence;
+	private boolean mPaused;
+
+	public BoundPriorityBlockingQueue(int maxSize, Comparator<? super T> comparator) {
+		mMaxSize = maxSize;
+		mComparator = comparator;
+		mEntries = new TreeSet<Entry<T>>(new Comparator<Entry<T>>() {
+			@Override
+			public int compare(Entry<T> lhs, Entry<T> rhs) {
+				int result = mComparator.compare(lhs.element, rhs.element);
+				if (result != 0) {
+					return result;
+				}
+				return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+			}
+		});
+	}
+
+	/**
+	 * Called for every element thrown out of the queue to keep it bounded,
+	 * on the thread that inserted, without holding the queue's lock.
+	 */
+	protected void onDropped(T element) {
+	}
+
+	/**
+	 * Inserts the element, dropping the lowest priority one if that makes
+	 * the queue too long. Always succeeds, an element that didn't make the
+	 * cut is passed to {@link #onDropped(Object)} instead.
+	 */
+	@Override
+	public boolean offer(T e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		T dropped = null;
+		mLock.lock();
+		try {
+			if (mIndex.containsKey(e)) {
+				return true;
+			}
+			Entry<T> entry = new Entry<T>(e, mSequence++);
+			mEntries.add(entry);
+			mIndex.put(e, entry);
+			if (mEntries.size() > mMaxSize) {
+				// first() and last() rather than polls, which need API 9
+				Entry<T> last = mEntries.last();
+				mEntries.remove(last);
+				mIndex.remove(last.element);
+				dropped = last.element;
+			}
+			if (dropped != e) {
+				mAvailable.signal();
+			}
+		} finally {
+			mLock.unlock();
+		}
+		if (dropped != null) {
+			onDropped(dropped);
+		}
+		return true;
+	}
+
+	@Override
+	public void put(T e) {
+		offer(e);
+	}
+
+	@Override
+	public boolean offer(T e, long timeout, TimeUnit unit) {
+		return offer(e);
+	}
+
+	/**
+	 * Removes the highest priority element, or returns null if there is none
+	 * or the queue is paused.
+	 */
+	@Override
+	public T poll() {
+		mLock.lock();
+		try {
+			return mPaused ? null : dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for an element while the queue is empty or paused.
+	 */
+	@Override
+	public T take() throws InterruptedException {
+		mLock.lockInterruptibly();
+		try {
+			while (mPaused || mEntries.isEmpty()) {
+				mAvailable.await();
+			}
+			return dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for an element while the queue is empty or paused.
+	 */
+	@Override
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		mLock.lockInterruptibly();
+		try {
+			while (mPaused || mEntries.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = mAvailable.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	private T dequeue() {
+		if (mEntries.isEmpty()) {
+			return null;
+		}
+		Entry<T> first = mEntries.first();
+		mEntries.remove(first);
+		mIndex.remove(first.element);
+		if (!mEntries.isEmpty()) {
+			// Someone else may be waiting too
+			mAvailable.signal();
+		}
+		return first.element;
+	}
+
+	@Override
+	public T peek() {
+		mLock.lock();
+		try {
+			return mEntries.isEmpty() ? null : mEntries.first().element;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		mLock.lock();
+		try {
+			Entry<T> entry = mIndex.remove(o);
+			if (entry == null) {
+				return false;
+			}
+			mEntries.remove(entry);
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the priority of an element in place, which is O(log n) and
+	 * unlike a remove and insert never leaves it out of the queue.
+	 *
+	 * @param change
+	 *            Updates what the comparator looks at. Only run if the
+	 *            element is queued.
+	 * @return false if the element isn't queued.
+	 */
+	public boolean update(T element, Runnable change) {
+		mLock.lock();
+		try {
+			Entry<T> entry = mIndex.get(element);
+			if (entry == null) {
+				return false;
+			}
+			mEntries.remove(entry);
+			change.run();
+			// Same sequence, it keeps its place among equals
+			mEntries.add(entry);
+			mAvailable.signal();
+			return true;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		mLock.lock();
+		try {
+			return mIndex.containsKey(o);
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int size() {
+		mLock.lock();
+		try {
+			return mEntries.size();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int remainingCapacity() {
+		// Inserts never fail, they make room
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void clear() {
+		mLock.lock();
+		try {
+			mEntries.clear();
+			mIndex.clear();
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	@Override
+	public int drainTo(Collection<? super T> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Moves out up to maxElements in priority order, whether or not the
+	 * queue is paused.
+	 */
+	@Override
+	public int drainTo(Collection<? super T> c, int maxElements) {
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		mLock.lock();
+		try {
+			int count = 0;
+			while (count < maxElements && !mEntries.isEmpty()) {
+				Entry<T> first = mEntries.first();
+				mEntries.remove(first);
+				mIndex.remove(first.element);
+				c.add(first.element);
+				count++;
+			}
+			return count;
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	/**
+	 * @return An iterator over a snapshot of the queue, in priority order.
+	 *         Removing through it removes from the queue.
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		final List<T> snapshot;
+		mLock.lock();
+		try {
+			snapshot = new ArrayList<T>(mEntries.size());
+			for (Entry<T> entry : mEntries) {
+				snapshot.add(entry.element);
+			}
+		} finally {
+			mLock.unlock();
+		}
+		return new Iterator<T>() {
+			private int mNext;
+			private T mLast;
+
+			@Override
+			public boolean hasNext() {
+				return mNext < snapshot.size();
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				mLast = snapshot.get(mNext++);
+				return mLast;
+			}
+
+			@Override
+			public void remove() {
+				if (mLast == null) {
+					throw new IllegalStateException();
+				}
+				BoundPriorityBlockingQueue.this.remove(mLast);
+				mLast = null;
+			}
+		};
+	}
+
+	/**
+	 * While paused, nothing is handed out to takers, so they keep waiting
+	 * and pick up the highest priority elements once resumed. Elements can
+	 * still be added and removed.
+	 */
+	void setPaused(boolean paused) {
+		mLock.lock();
+		try {
+			mPaused = paused;
+			if (!paused) {
+				mAvailable.signalAll();
+			}
+		} finally {
+			mLock.unlock();
+		}
+	}
+
+	boolean isPaused() {
+		mLock.lock();
+		try {
+			return mPaused;
+		} finally {
+			mLock.unlock();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * What the server told us about a cached image: the validators we can send
+ * back to ask whether it changed, and how long we may use it without asking.
+ * Stored in a small file next to the cache entry, see
+ * {@link ImageCache#getMetadataFile(File)}.
+ */
+class CacheMetadata {
+
+	private static final String TAG = "CacheMetadata";
+
+	private static final int MAGIC = 0x57494d31; // "WIM1"
+
+	/** The entry must be revalidated before every use */
+	static final long EXPIRES_NOW = 0;
+	/** The server didn't say, use the entry until it's evicted like we always did */
+	static final long EXPIRES_NEVER = Long.MAX_VALUE;
+
+	final String eTag;
+	final String lastModified;
+	final String contentType;
+	/** When the entry goes stale, in milliseconds since epoch */
+	final long expires;
+	/**
+	 * The server asked us not to keep the image on disk. Never stored, since
+	 * neither is the image.
+	 */
+	final boolean noStore;
+
+	CacheMetadata(String eTag, String lastModified, String contentType, long expires) {
+		this(eTag, lastModified, contentType, expires, false);
+	}
+
+	CacheMetadata(String eTag, String lastModified, String contentType, long expires, boolean noStore) {
+		this.eTag = eTag;
+		this.lastModified = lastModified;
+		this.contentType = contentType;
+		this.expires = expires;
+		this.noStore = noStore;
+	}
+
+	/**
+	 * Reads the validators and freshness lifetime from a response's headers.
+	 * @param now When the response was received.
+	 */
+	static CacheMetadata fromResponse(Downloader.Response response, long now) {
+		long expires = EXPIRES_NEVER;
+		String cacheControl = response.getHeader("Cache-Control");
+		long maxAge = -1;
+		boolean noStore = false;
+		if (cacheControl != null) {
+			for (String directive : cacheControl.split(",")) {
+				// Locale.US, other locales don't lowercase every ASCII letter to ASCII
+				directive = directive.trim().toLowerCase(Locale.US);
+				if (directive.equals("no-store")) {
+					noStore = true;
+					expires = EXPIRES_NOW;
+				} else if (directive.equals("no-cache")) {
+					expires = EXPIRES_NOW;
+				} else if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Long.parseLong(directive.substring("max-age=".length()).trim());
+					} catch (NumberFormatException e) {
+						// Ignore the directive
+					}
+				}
+			}
+		}
+		if (expires != EXPIRES_NOW) {
+			if (maxAge >= 0) {
+				// Whatever time the response spent in caches along the way counts too
+				long age = 0;
+				try {
+					String header = response.getHeader("Age");
+					age = header != null ? Long.parseLong(header.trim()) : 0;
+				} catch (NumberFormatException e) {
+					// Ignore the header
+				}
+				expires = now + Math.max(0, maxAge - age) * 1000;
+			} else {
+				long expiration = parseDate(response.getHeader("Expires"));
+				if (expiration != 0) {
+					// Expires is relative to the server's clock, not ours
+					long date = parseDate(response.getHeader("Date"));
+					expires = now + expiration - (date != 0 ? date : now);
+				}
+			}
+		}
+		return new CacheMetadata(response.getHeader("ETag"), response.getHeader("Last-Modified"),
+				response.getHeader("Content-Type"), expires, noStore);
+	}
+
+	/**
+	 * @return The HTTP date in milliseconds since epoch, or 0 if there is
+	 *         none or it can't be parsed.
+	 */
+	private static long parseDate(String date) {
+		if (date == null) {
+			return 0;
+		}
+		// Not thread safe, so not shared
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		try {
+			return format.parse(date.trim()).getTime();
+		} catch (ParseException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * @return true if the entry may be used without asking the server.
+	 */
+	boolean isFresh(long now) {
+		return now < expires;
+	}
+
+	/**
+	 * @return true if we can ask the server whether the entry changed.
+	 */
+	boolean hasValidators() {
+		return eTag != null || lastModified != null;
+	}
+
+	/**
+	 * Adds the conditional request headers, so the server can answer 304 Not
+	 * Modified instead of sending the image again.
+	 */
+	void addValidators(Map<String, String> headers) {
+		if (eTag != null) {
+			headers.put("If-None-Match", eTag);
+		}
+		if (lastModified != null) {
+			headers.put("If-Modified-Since", lastModified);
+		}
+	}
+
+	/**
+	 * Combines the metadata of a 304 Not Modified response with ours. The
+	 * response may leave out headers that still apply.
+	 */
+	CacheMetadata update(CacheMetadata notModified) {
+		return new CacheMetadata(notModified.eTag != null ? notModified.eTag : eTag,
+				notModified.lastModified != null ? notModified.lastModified : lastModified,
+				contentType, notModified.expires);
+	}
+
+	/**
+	 * @return The metadata stored in file, or null if there is none.
+	 */
+	static CacheMetadata read(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (input.readInt() != MAGIC) {
+					return null;
+				}
+				String eTag = readString(input);
+				String lastModified = readString(input);
+				String contentType = readString(input);
+				return new CacheMetadata(eTag, lastModified, contentType, input.readLong());
+			} finally {
+				input.close();
+			}
+		} catch (IOException e) {
+			// Truncated, same as not having any
+			return null;
+		}
+	}
+
+	/**
+	 * Stores this in file, replacing whatever was there.
+	 */
+	void write(File file) {
+		File tempFile = new File(file.getPath() + ImageCache.TEMP_FILE_SUFFIX);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(tempFile)));
+			try {
+				output.writeInt(MAGIC);
+				writeString(output, eTag);
+				writeString(output, lastModified);
+				writeString(output, contentType);
+				output.writeLong(expires);
+			} finally {
+				output.close();
+			}
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tempFile + " to " + file);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write " + file, e);
+			tempFile.delete();
+		}
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		String string = input.readUTF();
+		return string.length() == 0 ? null : string;
+	}
+
+	private static void writeString(DataOutputStream output, String string) throws IOException {
+		output.writeUTF(TextUtils.isEmpty(string) ? "" : string);
+	}
+}
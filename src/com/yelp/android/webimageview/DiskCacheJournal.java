@@ -0,0 +1,422 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An append-only journal of the files in a disk cache directory, so the
+ * cache can be kept within its size limit without listing and sorting the
+ * directory. Each line records a file being written (with its size), read or
+ * removed. Replaying the journal gives the size of every file in least
+ * recently used order, which lets us evict a few files at a time as new ones
+ * come in.
+ * <p>
+ * The journal is only rebuilt from the directory when it's missing or
+ * corrupt, and rewritten compactly once it holds many redundant lines.
+ * </p>
+ */
+class DiskCacheJournal {
+
+	private static final String TAG = "DiskCacheJournal";
+
+	static final String JOURNAL_FILE = "journal";
+	static final String JOURNAL_FILE_TEMP = "journal.tmp";
+	private static final String MAGIC = "com.yelp.android.webimageview.DiskCacheJournal";
+	private static final String VERSION = "1";
+
+	private static final String PUT = "PUT";
+	private static final String READ = "READ";
+	private static final String REMOVE = "REMOVE";
+
+	/** The journal is compacted once it has this many more lines than entries */
+	private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+	private final File mDirectory;
+	private final File mJournalFile;
+	private final long mMaxSize;
+
+	/** File sizes by name, least recently used first */
+	private final LinkedHashMap<String, Long> mEntries;
+	private long mSize;
+	private int mRedundantOpCount;
+	private Writer mWriter;
+
+	/** The files in mEntries, readable without taking our lock */
+	private final DiskIndex mIndex = new DiskIndex();
+
+	/**
+	 * @param directory The cache directory this journal accounts for.
+	 * @param maxSize The number of bytes the files in directory may take up.
+	 */
+	DiskCacheJournal(File directory, long maxSize) {
+		mDirectory = directory;
+		mJournalFile = new File(directory, JOURNAL_FILE);
+		mMaxSize = maxSize;
+		mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+	}
+
+	File getDirectory() {
+		return mDirectory;
+	}
+
+	/**
+	 * @return An index of the files in the directory, which is loaded along
+	 *         with the journal.
+	 */
+	DiskIndex getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Reads the journal, if that hasn't happened yet.
+	 */
+	synchronized void load() {
+		ensureOpen();
+	}
+
+	/**
+	 * @return true if the file lives in the directory this journal accounts for.
+	 */
+	boolean isInDirectory(File file) {
+		return file.getAbsolutePath().startsWith(mDirectory.getAbsolutePath() + File.separator);
+	}
+
+	/**
+	 * Records that the file was written, evicting the least recently used
+	 * files if the cache grew beyond its maximum size.
+	 */
+	synchronized void recordPut(File file) {
+		if (!ensureOpen()) {
+			return;
+		}
+		String name = getName(file);
+		long size = file.length();
+		Long previous = mEntries.put(name, size);
+		if (previous != null) {
+			mSize -= previous;
+			mRedundantOpCount++;
+		} else {
+			mIndex.add(name);
+		}
+		mSize += size;
+		append(PUT + ' ' + name + ' ' + size);
+		trimToSize();
+	}
+
+	/**
+	 * Records that the file was used, so it will be evicted later.
+	 */
+	synchronized void recordRead(File file) {
+		if (!ensureOpen()) {
+			return;
+		}
+		String name = getName(file);
+		if (mEntries.get(name) != null) {
+			mRedundantOpCount++;
+			append(READ + ' ' + name);
+		} else {
+			// Written while we weren't looking, account for it now
+			recordPut(file);
+		}
+	}
+
+	/**
+	 * Records that the file is gone.
+	 */
+	synchronized void recordRemove(File file) {
+		if (!ensureOpen()) {
+			return;
+		}
+		String name = getName(file);
+		Long previous = mEntries.remove(name);
+		if (previous != null) {
+			mSize -= previous;
+			mRedundantOpCount += 2;
+			append(REMOVE + ' ' + name);
+			mIndex.remove(name);
+		}
+	}
+
+	/**
+	 * Deletes least recently used files until the cache fits its maximum size.
+	 */
+	synchronized void trimToSize() {
+		if (!ensureOpen()) {
+			return;
+		}
+		int numberOfFiles = 0;
+		Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+		while (mSize > mMaxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			iterator.remove();
+			mSize -= eldest.getValue();
+			mRedundantOpCount += 2;
+			append(REMOVE + ' ' + eldest.getKey());
+			mIndex.remove(eldest.getKey());
+			File file = new File(mDirectory, eldest.getKey());
+			if (!file.delete() && file.exists()) {
+				file.deleteOnExit();
+			}
+			ImageCache.getMetadataFile(file).delete();
+			numberOfFiles++;
+		}
+		if (numberOfFiles > 0) {
+			Log.d(TAG, String.format("Purged %d files and left with %d bytes on disk", numberOfFiles, mSize));
+		}
+		if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+			rewrite();
+		}
+	}
+
+	/**
+	 * @return The number of bytes the files in the cache take up.
+	 */
+	synchronized long size() {
+		ensureOpen();
+		return mSize;
+	}
+
+	synchronized void close() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (IOException e) {
+				// Nothing to be done
+			}
+			mWriter = null;
+		}
+	}
+
+	private String getName(File file) {
+		String directory = mDirectory.getAbsolutePath();
+		String path = file.getAbsolutePath();
+		if (path.startsWith(directory) && path.length() > directory.length()) {
+			return path.substring(directory.length() + 1);
+		}
+		return file.getName();
+	}
+
+	/**
+	 * Reads the journal on first use, rebuilding it if necessary.
+	 * @return false if the journal can't be written to.
+	 */
+	private boolean ensureOpen() {
+		if (mWriter != null) {
+			return true;
+		}
+		// NOTE: Android can clear the cache at any time, including our journal
+		mDirectory.mkdirs();
+		if (mJournalFile.exists()) {
+			try {
+				readJournal();
+				mWriter = new BufferedWriter(new OutputStreamWriter(
+						new FileOutputStream(mJournalFile, true), "US-ASCII"));
+				mIndex.load(mEntries.keySet());
+				return true;
+			} catch (IOException e) {
+				Log.w(TAG, "Journal in " + mDirectory + " is corrupt, rebuilding it", e);
+			}
+		}
+		rebuild();
+		if (mWriter == null) {
+			// Puts won't be recorded, so the index can't be trusted
+			mIndex.reset();
+			return false;
+		}
+		return true;
+	}
+
+	private void readJournal() throws IOException {
+		mEntries.clear();
+		mSize = 0;
+		int lineCount = 0;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(mJournalFile), "US-ASCII"));
+		try {
+			if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())
+					|| !"".equals(reader.readLine())) {
+				throw new IOException("Unexpected journal header");
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				readJournalLine(line);
+				lineCount++;
+			}
+		} finally {
+			reader.close();
+		}
+		mRedundantOpCount = lineCount - mEntries.size();
+	}
+
+	private void readJournalLine(String line) throws IOException {
+		String[] parts = line.split(" ");
+		try {
+			if (PUT.equals(parts[0]) && parts.length == 3) {
+				long size = Long.parseLong(parts[2]);
+				Long previous = mEntries.put(parts[1], size);
+				if (previous != null) {
+					mSize -= previous;
+				}
+				mSize += size;
+				return;
+			} else if (READ.equals(parts[0]) && parts.length == 2) {
+				mEntries.get(parts[1]);
+				return;
+			} else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+				Long previous = mEntries.remove(parts[1]);
+				if (previous != null) {
+					mSize -= previous;
+				}
+				return;
+			}
+		} catch (NumberFormatException e) {
+			// Fall through
+		}
+		throw new IOException("Unexpected journal line: " + line);
+	}
+
+	/**
+	 * Rebuilds the journal from the files in the directory, oldest first.
+	 */
+	private void rebuild() {
+		mEntries.clear();
+		mSize = 0;
+		List<File> files = new ArrayList<File>();
+		listFiles(mDirectory, files);
+		final int count = files.size();
+		// Stat every file once rather than once per comparison
+		final long[] lastModified = new long[count];
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			lastModified[i] = files.get(i).lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer lhs, Integer rhs) {
+				long left = lastModified[lhs];
+				long right = lastModified[rhs];
+				return left < right ? -1 : (left == right ? 0 : 1);
+			}
+		});
+		for (Integer index : order) {
+			File file = files.get(index);
+			long size = file.length();
+			mEntries.put(getName(file), size);
+			mSize += size;
+		}
+		mIndex.load(mEntries.keySet());
+		rewrite();
+	}
+
+	/**
+	 * Collects the cached files in the shard directories. Files at the top
+	 * level other than the journal predate sharding and are deleted.
+	 * Metadata files aren't entries of their own, they go with their image.
+	 */
+	private void listFiles(File directory, List<File> files) {
+		File[] children = directory.listFiles();
+		if (children == null) {
+			return;
+		}
+		for (File child : children) {
+			String name = child.getName();
+			if (child.isDirectory()) {
+				File[] shard = child.listFiles();
+				if (shard != null) {
+					for (File file : shard) {
+						if (!file.isFile()) {
+							continue;
+						} else if (file.getName().endsWith(ImageCache.METADATA_SUFFIX)) {
+							// Accounted for with its image
+						} else if (!file.getName().endsWith(ImageCache.TEMP_FILE_SUFFIX)) {
+							files.add(file);
+						} else if (file.lastModified() < System.currentTimeMillis() - DateUtils.DAY_IN_MILLIS) {
+							// Left behind by a download that never finished
+							file.delete();
+						}
+					}
+				}
+			} else if (!JOURNAL_FILE.equals(name) && !JOURNAL_FILE_TEMP.equals(name)) {
+				child.delete();
+			}
+		}
+	}
+
+	/**
+	 * Writes a journal holding nothing but the current entries, and swaps it
+	 * in for the current one.
+	 */
+	private void rewrite() {
+		close();
+		File tempFile = new File(mDirectory, JOURNAL_FILE_TEMP);
+		try {
+			Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(tempFile), "US-ASCII"));
+			try {
+				writer.write(MAGIC + '\n' + VERSION + '\n' + '\n');
+				for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+					writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+				}
+			} finally {
+				writer.close();
+			}
+			if (!tempFile.renameTo(mJournalFile)) {
+				throw new IOException("Could not rename " + tempFile + " to " + mJournalFile);
+			}
+			mRedundantOpCount = 0;
+			mWriter = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(mJournalFile, true), "US-ASCII"));
+		} catch (IOException e) {
+			Log.w(TAG, "Could not write journal in " + mDirectory, e);
+			tempFile.delete();
+		}
+	}
+
+	private void append(String line) {
+		if (mWriter == null) {
+			return;
+		}
+		try {
+			mWriter.write(line);
+			mWriter.write('\n');
+			// No sync, a journal lost in a crash is simply rebuilt
+			mWriter.flush();
+		} catch (IOException e) {
+			Log.w(TAG, "Could not append to journal in " + mDirectory, e);
+			close();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.util.Collection;
+
+/**
+ * Remembers which images are in a cache directory, so a lookup for one that
+ * isn't can skip the file system. Each cache file is recorded as a 64 bit
+ * fingerprint of its name (the first half of its MD5 digest) and a count of
+ * the names sharing it, twelve bytes an entry in an open addressed table, so
+ * even a full cache takes up little memory. Two names sharing a fingerprint
+ * are vanishingly rare and only cost us a File.exists() call, removing one
+ * of them leaves the other findable.
+ * <p>
+ * Until the index has been loaded, it knows nothing and callers have to ask
+ * the file system. It never does any IO itself, so it's safe to query from
+ * the UI thread.
+ * </p>
+ */
+class DiskIndex {
+
+	/** Marks a free slot, fingerprints that happen to be 0 are stored as 1 */
+	private static final long EMPTY = 0;
+
+	private long[] mTable = new long[16];
+	/** How many names have the fingerprint in the same slot of mTable */
+	private int[] mCounts = new int[16];
+	private int mSize;
+	private boolean mLoaded;
+
+	/**
+	 * @return true once the index knows everything in its directory.
+	 */
+	synchronized boolean isLoaded() {
+		return mLoaded;
+	}
+
+	/**
+	 * Replaces the contents of the index with the given cache file names and
+	 * marks it as loaded.
+	 */
+	synchronized void load(Collection<String> names) {
+		mTable = new long[tableSizeFor(names.size())];
+		mCounts = new int[mTable.length];
+		mSize = 0;
+		for (String name : names) {
+			insert(fingerprint(name), 1);
+		}
+		mLoaded = true;
+	}
+
+	/**
+	 * Forgets everything, until the next {@link #load(Collection)}.
+	 */
+	synchronized void reset() {
+		mTable = new long[16];
+		mCounts = new int[16];
+		mSize = 0;
+		mLoaded = false;
+	}
+
+	/**
+	 * Records a file that wasn't in the directory yet. Adding the same name
+	 * twice means it takes two removals to forget it.
+	 */
+	synchronized void add(String name) {
+		if (mLoaded) {
+			insert(fingerprint(name), 1);
+		}
+	}
+
+	synchronized void remove(String name) {
+		if (!mLoaded) {
+			return;
+		}
+		long fingerprint = fingerprint(name);
+		int mask = mTable.length - 1;
+		int index = indexOf(fingerprint);
+		while (mTable[index] != fingerprint) {
+			if (mTable[index] == EMPTY) {
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		if (--mCounts[index] > 0) {
+			// Another name still has this fingerprint
+			return;
+		}
+		// Shift later entries of the run back, so lookups don't stop short
+		// at the hole we leave
+		int hole = index;
+		index = (index + 1) & mask;
+		while (mTable[index] != EMPTY) {
+			int home = indexOf(mTable[index]);
+			if (((index - home) & mask) >= ((index - hole) & mask)) {
+				mTable[hole] = mTable[index];
+				mCounts[hole] = mCounts[index];
+				hole = index;
+			}
+			index = (index + 1) & mask;
+		}
+		mTable[hole] = EMPTY;
+		mCounts[hole] = 0;
+		mSize--;
+	}
+
+	/**
+	 * @return false if the file is definitely not in the directory. Only
+	 *         meaningful once the index {@link #isLoaded()}.
+	 */
+	synchronized boolean mightContain(String name) {
+		long fingerprint = fingerprint(name);
+		int mask = mTable.length - 1;
+		for (int index = indexOf(fingerprint); mTable[index] != EMPTY; index = (index + 1) & mask) {
+			if (mTable[index] == fingerprint) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void insert(long fingerprint, int count) {
+		int mask = mTable.length - 1;
+		int index = indexOf(fingerprint);
+		while (mTable[index] != EMPTY) {
+			if (mTable[index] == fingerprint) {
+				mCounts[index] += count;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		mTable[index] = fingerprint;
+		mCounts[index] = count;
+		mSize++;
+		// Keep it at most half full so runs stay short
+		if (mSize * 2 > mTable.length) {
+			long[] old = mTable;
+			int[] oldCounts = mCounts;
+			mTable = new long[old.length * 2];
+			mCounts = new int[mTable.length];
+			mSize = 0;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] != EMPTY) {
+					insert(old[i], oldCounts[i]);
+				}
+			}
+		}
+	}
+
+	private int indexOf(long fingerprint) {
+		// The fingerprint is already uniformly distributed
+		return (int) fingerprint & (mTable.length - 1);
+	}
+
+	private static int tableSizeFor(int count) {
+		int size = 16;
+		while (size < count * 2) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * @param name A cache file name, which is the hex MD5 digest of its URL,
+	 *        optionally prefixed by its shard directory.
+	 */
+	static long fingerprint(String name) {
+		int start = name.lastIndexOf('/') + 1;
+		long fingerprint = 0;
+		for (int i = start; i < start + 16 && i < name.length(); i++) {
+			fingerprint = (fingerprint << 4) | Character.digit(name.charAt(i), 16);
+		}
+		return fingerprint == EMPTY ? 1 : fingerprint;
+	}
+}
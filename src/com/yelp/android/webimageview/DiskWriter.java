@@ -0,0 +1,143 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Moves freshly downloaded cache files into place in the background, so the
+ * loader threads can deliver their bitmaps without waiting on the disk.
+ * Each file still gets a sync of its own, there is no call that flushes
+ * several at once, but they all happen on this one thread. Whatever queued
+ * up while the previous group was being handled is synced in full before
+ * any of it is renamed. Until a file has been moved into place it can still
+ * be read through {@link #getPendingFile(File)}.
+ */
+class DiskWriter implements Runnable {
+
+	private static final String TAG = "DiskWriter";
+
+	private final ImageCache mCache;
+	private final BlockingQueue<Write> mQueue;
+	/** Temp files by the cache file they will replace. Guarded by this. */
+	private final HashMap<File, File> mPending;
+	private Thread mThread;
+
+	private static class Write {
+		final File tempFile;
+		final File imageFile;
+		final CacheMetadata metadata;
+
+		Write(File tempFile, File imageFile, CacheMetadata metadata) {
+			this.tempFile = tempFile;
+			this.imageFile = imageFile;
+			this.metadata = metadata;
+		}
+	}
+
+	DiskWriter(ImageCache cache) {
+		mCache = cache;
+		mQueue = new LinkedBlockingQueue<Write>();
+		mPending = new HashMap<File, File>();
+	}
+
+	/**
+	 * Queues tempFile to be synced and renamed to imageFile.
+	 * @param metadata Stored alongside imageFile once it's in place, may be null.
+	 */
+	synchronized void enqueue(File tempFile, File imageFile, CacheMetadata metadata) {
+		mPending.put(imageFile, tempFile);
+		mQueue.add(new Write(tempFile, imageFile, metadata));
+		if (mThread == null) {
+			mThread = new Thread(this, TAG);
+			mThread.setDaemon(true);
+			mThread.start();
+		}
+	}
+
+	/**
+	 * @return The temp file that will become imageFile, or null if there is
+	 *         no write pending for it.
+	 */
+	synchronized File getPendingFile(File imageFile) {
+		return mPending.get(imageFile);
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+		List<Write> group = new ArrayList<Write>();
+		while (true) {
+			try {
+				group.add(mQueue.take());
+			} catch (InterruptedException e) {
+				// Nobody interrupts us, keep going
+				continue;
+			}
+			mQueue.drainTo(group);
+			for (Write write : group) {
+				if (!sync(write.tempFile)) {
+					write.tempFile.delete();
+				}
+			}
+			// Renaming only once everything is synced means a crash can't
+			// leave a cache file behind whose contents never made it to disk
+			for (Write write : group) {
+				if (write.tempFile.exists() && !mCache.moveIntoPlace(write.tempFile, write.imageFile,
+						write.metadata)) {
+					write.tempFile.delete();
+				}
+				synchronized (this) {
+					if (mPending.get(write.imageFile) == write.tempFile) {
+						mPending.remove(write.imageFile);
+					}
+				}
+			}
+			group.clear();
+		}
+	}
+
+	/**
+	 * Flushes the file's contents to the storage device.
+	 * @return false if that failed.
+	 */
+	static boolean sync(File file) {
+		try {
+			// Opened for writing, which doesn't truncate, since some
+			// platforms won't sync a read-only descriptor
+			RandomAccessFile handle = new RandomAccessFile(file, "rw");
+			try {
+				handle.getFD().sync();
+			} finally {
+				handle.close();
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(TAG, "Could not sync " + file, e);
+			return false;
+		}
+	}
+}
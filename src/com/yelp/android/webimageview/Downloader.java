@@ -0,0 +1,90 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Fetches images for {@link ImageLoader}. Implement this to download over
+ * your own HTTP client, or to serve images from somewhere else entirely, and
+ * pass it to {@link ImageLoader#initialize(android.content.Context,
+ * Thread.UncaughtExceptionHandler, int, Downloader)}. The default is
+ * {@link UrlConnectionDownloader}.
+ * <p>
+ * Downloads happen on the loader threads, so implementations must be thread
+ * safe.
+ * </p>
+ */
+public interface Downloader {
+
+	/**
+	 * Starts downloading the resource at url and returns once the status and
+	 * headers are in. Redirects should be followed.
+	 *
+	 * @param url
+	 *            The URL of the image.
+	 * @param headers
+	 *            Request headers to send, such as the validators of a
+	 *            conditional request.
+	 * @param followCrossRedirects
+	 *            If true, redirects between HTTP and HTTPS should be followed
+	 *            too.
+	 * @return The response, which the caller will close.
+	 * @throws IOException
+	 *             if the server couldn't be reached.
+	 */
+	Response download(String url, Map<String, String> headers, boolean followCrossRedirects)
+			throws IOException;
+
+	/**
+	 * The status, headers and body of a download.
+	 */
+	public interface Response {
+
+		/**
+		 * @return The HTTP status code, or -1 if the protocol has none.
+		 */
+		int getStatus();
+
+		/**
+		 * @return The value of the named response header, or null.
+		 */
+		String getHeader(String name);
+
+		/**
+		 * @return The number of bytes the body holds, or -1 if unknown.
+		 */
+		long getContentLength();
+
+		/**
+		 * @return A stream of the body.
+		 */
+		InputStream getBody() throws IOException;
+
+		/**
+		 * Releases the body and the connection behind it.
+		 */
+		void close();
+
+		/**
+		 * Called from another thread to stop a download that is taking too
+		 * long. Reads of the body in progress should fail soon after.
+		 */
+		void abort();
+	}
+}
@@ -17,7 +17,6 @@ package com.yelp.android.webimageview;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
@@ -28,7 +27,7 @@ import java.io.OutputStream;
 /**
  * A wrapper around an InputStream which writes bytes to the provided File as
  * they are read from the stream. Calling close on this stream closes both the
- * file stream and the provided InputStream.
+ * file stream and the provided InputStream. The file isn't synced to disk.
  *
  * @author pretz
  *
@@ -37,15 +36,11 @@ public class FileWritingInputStream extends FilterInputStream {
 
 	private static final int BUFFER_SIZE = 4096;
 	final OutputStream mOutput;
-	final FileDescriptor mFd;
+	private long mCount;
+	private boolean mWriteFailed;
 
 	public FileWritingInputStream(InputStream stream, FileOutputStream file) throws FileNotFoundException {
 		super(new BufferedInputStream(stream, BUFFER_SIZE));
-		try {
-			mFd = file.getFD();
-		} catch (IOException e) {
-			throw new FileNotFoundException("Could not get file descriptor for given file.");
-		}
 		mOutput = new BufferedOutputStream(file, BUFFER_SIZE);
 	}
 
@@ -53,7 +48,8 @@ public class FileWritingInputStream extends FilterInputStream {
 	public int read(byte[] buffer, int offset, int count) throws IOException {
 		int read = super.read(buffer, offset, count);
 		if (read >= 0) {
-			mOutput.write(buffer, offset, read);
+			write(buffer, offset, read);
+			mCount += read;
 		}
 		return read;
 	}
@@ -67,17 +63,55 @@ public class FileWritingInputStream extends FilterInputStream {
 	public int read() throws IOException {
 		int read = super.read();
 		if (read >= 0) {
-			mOutput.write(read);
+			try {
+				mOutput.write(read);
+			} catch (IOException e) {
+				mWriteFailed = true;
+				throw e;
+			}
+			mCount++;
 		}
 		return read;
 	}
 
+	private void write(byte[] buffer, int offset, int count) throws IOException {
+		try {
+			mOutput.write(buffer, offset, count);
+		} catch (IOException e) {
+			mWriteFailed = true;
+			throw e;
+		}
+	}
+
+	/**
+	 * @return The number of bytes read from the stream and written to the file.
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return true if an IOException came from writing the file rather than
+	 *         reading the stream, for instance because the disk is full.
+	 */
+	public boolean isWriteFailed() {
+		return mWriteFailed;
+	}
+
 	@Override
 	public void close() throws IOException {
-		super.close();
-		mOutput.flush();
-		mFd.sync();
-		mOutput.close();
+		try {
+			super.close();
+		} finally {
+			// Not synced, that's up to whoever decides the file is worth keeping
+			try {
+				mOutput.close();
+			} catch (IOException e) {
+				// Whatever was still buffered didn't fit
+				mWriteFailed = true;
+				throw e;
+			}
+		}
 	}
 
 	@Override
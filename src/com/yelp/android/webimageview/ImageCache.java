@@ -32,16 +32,24 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
-import com.yelp.common.collect.MapMaker;
-
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.Comparator;
-import java.util.concurrent.ConcurrentMap;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -77,14 +85,41 @@ public class ImageCache {
 	private static final int MAX_INTERNAL = MEGABYTE_IN_BYTES;
 	private static final int MAX_EXTERNAL = MEGABYTE_IN_BYTES * 5;
 
-	/** trimCache() will be called every time this many new files are created on disk */
+	private static final int BUFFER_SIZE = 4096;
+	/** Enough for the decoder to rewind to after sniffing the image header */
+	private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+	/** Downloads in progress end in this */
+	static final String TEMP_FILE_SUFFIX = ".tmp";
+	/** The file next to a cache file holding its {@link CacheMetadata} ends in this */
+	static final String METADATA_SUFFIX = ".meta";
+	private static final AtomicInteger TEMP_FILE_COUNTER = new AtomicInteger();
+
+	/** Cache files are moved into place as soon as they're written, and may be lost in a crash. */
+	public static final int DURABILITY_NONE = 0;
+	/** Cache files are synced and moved into place in the background, one thread for all loaders. */
+	public static final int DURABILITY_BATCHED = 1;
+	/** Cache files are synced and moved into place before the image is delivered. */
+	public static final int DURABILITY_SYNC = 2;
+
+	/** Starts every cache file, followed by the URL the file was downloaded from */
+	private static final int ENTRY_MAGIC = 0x57495631; // "WIV1"
+
+	/**
+	 * trimCache() will be called every time this many new files are created on
+	 * disk. The second level cache is also trimmed as files are added to it.
+	 */
 	private static final int CACHE_CLEAR_FREQUENCY = 75;
 
-	private static final OptionsFactory OPTIONS = Integer.valueOf(VERSION.SDK) >= Build.VERSION_CODES.DONUT ? new EfficientOptionsFactory() : new OptionsFactory();
+	/**
+	 * Disk reads are serialised per stripe of URLs rather than for the whole
+	 * cache, so different images decode in parallel while requests for the
+	 * same image wait for and share a single decode.
+	 */
+	private static final int DISK_LOCK_STRIPES = 32;
 
 	/**
-	 * Directory where cached images will be stored. This object is also used as
-	 * the lock around the cache directory.
+	 * Directory where cached images will be stored.
 	 */
 	/* package */ File mSecondLevelCacheDir;
 
@@ -95,16 +130,70 @@ public class ImageCache {
 
 	/* package */ final File mPermanentCacheDir;
 
-	private final ConcurrentMap<String, Bitmap> mCache;
+	private final BitmapLruCache<CacheKey> mCache;
+
+	/** Every size variant in mCache for each image URL. Guarded by mPool. */
+	private final HashMap<String, Set<CacheKey>> mVariants;
+
+	/** Bitmaps evicted from mCache waiting to be decoded into again. Also used as the lock
+	 * around handing out bitmaps from mCache, so they can't be pooled while in flight. */
+	private final BitmapPool mPool;
+
+	private final OptionsFactory mOptions;
+
+	/** Accounts for the files in mSecondLevelCacheDir. Guarded by mJournalLock. */
+	private DiskCacheJournal mJournal;
+	private final Object mJournalLock = new Object();
+
+	private final Object[] mDiskLocks;
+
+	private final DiskWriter mDiskWriter;
+
+	/** The files in mPermanentCacheDir, loaded on first use */
+	private final DiskIndex mPermanentIndex = new DiskIndex();
+	private volatile int mDurability = DURABILITY_BATCHED;
 
 	private int mInMemoryCacheMissCount;
 
 	private BroadcastReceiver mExternalStorageReceiver;
 
+	/**
+	 * Creates a cache whose in-memory level holds up to
+	 * {@link #getDefaultMemoryCacheSize()} bytes of decoded pixels.
+	 */
 	public ImageCache(Context context, int initialCapacity, int concurrencyLevel) {
+		this(context, initialCapacity, concurrencyLevel, getDefaultMemoryCacheSize());
+	}
+
+	/**
+	 * @param concurrencyLevel
+	 *            Unused since the in-memory cache became a strict LRU, kept
+	 *            for source compatibility.
+	 * @param maxMemoryBytes
+	 *            The number of bytes of decoded pixels the in-memory cache
+	 *            may hold before least recently used images are evicted.
+	 */
+	public ImageCache(Context context, int initialCapacity, int concurrencyLevel, int maxMemoryBytes) {
 		mContext = context;
-		this.mCache = new MapMaker().initialCapacity(initialCapacity).concurrencyLevel(
-			concurrencyLevel).softValues().makeMap();
+		this.mPool = new BitmapPool(maxMemoryBytes / 4);
+		this.mVariants = new HashMap<String, Set<CacheKey>>();
+		this.mCache = new BitmapLruCache<CacheKey>(initialCapacity, maxMemoryBytes) {
+			@Override
+			protected void entryRemoved(boolean evicted, CacheKey key, Bitmap bitmap) {
+				synchronized (mPool) {
+					if (evicted || mCache.peek(key) == null) {
+						removeVariant(key);
+					}
+					mPool.offer(bitmap);
+				}
+			}
+		};
+		this.mOptions = createOptionsFactory(mPool);
+		this.mDiskWriter = new DiskWriter(this);
+		this.mDiskLocks = new Object[DISK_LOCK_STRIPES];
+		for (int i = 0; i < DISK_LOCK_STRIPES; i++) {
+			mDiskLocks[i] = new Object();
+		}
 		this.mPermanentCacheDir = new File(context.getApplicationContext().getCacheDir()
 				.getAbsolutePath() + "/permanent_images");
 		this.mInternalCacheDir = new File(context.getApplicationContext().getCacheDir()
@@ -113,6 +202,14 @@ public class ImageCache {
 		registerForExternalStorageUpdates(context);
 	}
 
+	/**
+	 * @return An eighth of the heap available to this process, which leaves
+	 *         plenty of room for the rest of the app.
+	 */
+	public static int getDefaultMemoryCacheSize() {
+		return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+	}
+
 	/**
 	 * http://developer.android.com/reference/android/os/Environment.html#getExternalStorageDirectory()
 	 */
@@ -188,20 +285,127 @@ public class ImageCache {
 		return mSecondLevelCacheDir == mExternalCacheDir;
 	}
 
+	/**
+	 * @return The journal of the current second level cache directory.
+	 */
+	DiskCacheJournal getJournal() {
+		File directory = mSecondLevelCacheDir;
+		synchronized (mJournalLock) {
+			if (mJournal == null || mJournal.getDirectory() != directory) {
+				if (mJournal != null) {
+					mJournal.close();
+				}
+				mJournal = new DiskCacheJournal(directory,
+						directory == mExternalCacheDir ? MAX_EXTERNAL : MAX_INTERNAL);
+			}
+			return mJournal;
+		}
+	}
+
 	/**
 	 * Checks only the in-memory cache for the requested key. Use getFile() to
 	 * check the on-disk cache.
 	 */
 	public Bitmap get(Object key) {
-		String imageUrl = String.valueOf(key);
-		Bitmap bitmap = mCache.get(imageUrl);
+		return get(String.valueOf(key), 0, 0);
+	}
 
-		if (bitmap != null) {
-			// 1st level cache hit (memory)
+	/**
+	 * Checks only the in-memory cache for a variant of the image that is at
+	 * least reqWidth x reqHeight. If the image was decoded at several sizes,
+	 * the smallest one that is big enough is returned.
+	 *
+	 * @param reqWidth
+	 *            The required width, or 0 to only accept the full size image.
+	 * @param reqHeight
+	 *            The required height, or 0 to only accept the full size image.
+	 */
+	public Bitmap get(String imageUrl, int reqWidth, int reqHeight) {
+		synchronized (mPool) {
+			Bitmap bitmap = lookup(imageUrl, reqWidth, reqHeight);
+			mPool.markEscaped(bitmap);
 			return bitmap;
 		}
-		// cache miss
-		return null;
+	}
+
+	/**
+	 * @return true if any variant of the image is in the in-memory cache.
+	 */
+	boolean isCached(String imageUrl) {
+		synchronized (mPool) {
+			return mVariants.containsKey(imageUrl);
+		}
+	}
+
+	/**
+	 * @return true if a variant of the image that is at least reqWidth x
+	 *         reqHeight is in the in-memory cache.
+	 */
+	boolean isCached(String imageUrl, int reqWidth, int reqHeight) {
+		synchronized (mPool) {
+			return lookup(imageUrl, reqWidth, reqHeight) != null;
+		}
+	}
+
+	/**
+	 * Same as {@link #get(String, int, int)}, but the returned bitmap is
+	 * acquired from the bitmap pool and must be handed back with
+	 * {@link #release(Bitmap)}.
+	 */
+	Bitmap getAndAcquire(String imageUrl, int reqWidth, int reqHeight) {
+		synchronized (mPool) {
+			Bitmap bitmap = lookup(imageUrl, reqWidth, reqHeight);
+			mPool.acquire(bitmap);
+			return bitmap;
+		}
+	}
+
+	/**
+	 * Must be called with mPool held.
+	 */
+	private Bitmap lookup(String imageUrl, int reqWidth, int reqHeight) {
+		CacheKey requested = new CacheKey(imageUrl, reqWidth, reqHeight, mOptions.getConfig());
+		Bitmap bitmap = mCache.get(requested);
+		if (bitmap != null || requested.isFullSize()) {
+			return bitmap;
+		}
+		Set<CacheKey> variants = mVariants.get(imageUrl);
+		if (variants == null) {
+			return null;
+		}
+		CacheKey best = null;
+		for (CacheKey variant : variants) {
+			if (variant.config != requested.config) {
+				continue;
+			}
+			Bitmap candidate = mCache.peek(variant);
+			if (candidate == null || !(variant.isFullSize()
+					|| (candidate.getWidth() >= reqWidth && candidate.getHeight() >= reqHeight))) {
+				continue;
+			}
+			if (bitmap == null || BitmapLruCache.sizeOf(candidate) < BitmapLruCache.sizeOf(bitmap)) {
+				bitmap = candidate;
+				best = variant;
+			}
+		}
+		if (best != null) {
+			// Mark the variant we served as recently used
+			mCache.get(best);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Must be called with mPool held.
+	 */
+	private void removeVariant(CacheKey key) {
+		Set<CacheKey> variants = mVariants.get(key.url);
+		if (variants != null) {
+			variants.remove(key);
+			if (variants.isEmpty()) {
+				mVariants.remove(key.url);
+			}
+		}
 	}
 
 	/**
@@ -212,36 +416,201 @@ public class ImageCache {
 	 * @return
 	 */
 	public Bitmap getBitmap(Object key) {
-		String imageUrl = String.valueOf(key);
+		Bitmap bitmap = getBitmapAndAcquire(String.valueOf(key), 0, 0);
+		markEscaped(bitmap);
+		release(bitmap);
+		return bitmap;
+	}
+
+	/**
+	 * Same as {@link #getBitmap(Object)}, but the returned bitmap is acquired
+	 * from the bitmap pool and must be handed back with {@link #release(Bitmap)}.
+	 * Any in-memory variant of at least reqWidth x reqHeight will do.
+	 */
+	Bitmap getBitmapAndAcquire(String imageUrl, int reqWidth, int reqHeight) {
+		return getBitmapAndAcquire(imageUrl, reqWidth, reqHeight, false);
+	}
+
+	/**
+	 * @param fresh
+	 *            If true, a disk entry the server said has gone stale counts
+	 *            as a miss, see {@link #getMetadata(String)} for revalidating
+	 *            it.
+	 */
+	Bitmap getBitmapAndAcquire(String imageUrl, int reqWidth, int reqHeight, boolean fresh) {
 		// Double-check cache before breaking down and reading flash memory
-		Bitmap bitmap = get(imageUrl);
+		Bitmap bitmap = getAndAcquire(imageUrl, reqWidth, reqHeight);
 		if (bitmap == null) {
-			synchronized(this.mSecondLevelCacheDir) {
-				File imageFile = getImageFile(this.mSecondLevelCacheDir, imageUrl);
-				if (!imageFile.exists()) {
-					imageFile = getImageFile(this.mPermanentCacheDir, imageUrl);
+			synchronized (getDiskLock(imageUrl)) {
+				// Another thread may have just decoded it for us
+				bitmap = getAndAcquire(imageUrl, reqWidth, reqHeight);
+				if (bitmap != null) {
+					return bitmap;
+				}
+				File imageFile = findImageFile(imageUrl);
+				if (fresh && imageFile != null && !isFresh(imageFile)) {
+					return null;
 				}
-				if (imageFile.exists()) {
+				if (imageFile != null) {
 					// 2nd level cache hit (disk)
 
-					bitmap = BitmapFactory.decodeFile(imageFile.getAbsolutePath(), OPTIONS.getOptions());
+					bitmap = decodeAndCache(new CacheKey(imageUrl, reqWidth, reqHeight, mOptions.getConfig()),
+							imageFile);
 					if (bitmap == null) {
 						// treat decoding errors as a cache miss
 						return null;
 					}
-					// Set file modified date to now to attempt to keep on disk longer
-					imageFile.setLastModified(System.currentTimeMillis());
+					// Keep recently used files on disk longer
+					DiskCacheJournal journal = getJournal();
+					if (imageFile.getName().endsWith(TEMP_FILE_SUFFIX)) {
+						// Still being written, it's as recent as it gets
+					} else if (journal.isInDirectory(imageFile)) {
+						journal.recordRead(imageFile);
+					} else {
+						imageFile.setLastModified(System.currentTimeMillis());
+					}
 					if (BuildConfig.DEBUG) {
 						mInMemoryCacheMissCount++;
 						Log.i("ImageCache", "In-memory cache miss #" + mInMemoryCacheMissCount);
 					}
-					mCache.put(imageUrl, bitmap);
 				}
 			}
 		}
 		return bitmap;
 	}
 
+	/**
+	 * @return The file holding imageUrl on disk, possibly one that is still
+	 *         waiting to be moved into place, or null if there is none.
+	 */
+	private File findImageFile(String imageUrl) {
+		String name = digest(imageUrl);
+		DiskCacheJournal journal = getJournal();
+		if (!journal.getIndex().isLoaded()) {
+			journal.load();
+		}
+		File imageFile = findImageFile(journal.getDirectory(), name, journal.getIndex());
+		if (imageFile == null) {
+			imageFile = findImageFile(mPermanentCacheDir, name, loadPermanentIndex());
+		}
+		return imageFile;
+	}
+
+	private File findImageFile(File directory, String name, DiskIndex index) {
+		File imageFile = getShardedFile(directory, name);
+		File pendingFile = mDiskWriter.getPendingFile(imageFile);
+		if (pendingFile != null && pendingFile.exists()) {
+			return pendingFile;
+		}
+		// No need to ask the file system about what we know isn't there
+		if (index.isLoaded() && !index.mightContain(name)) {
+			return null;
+		}
+		return imageFile.exists() ? imageFile : null;
+	}
+
+	/**
+	 * @return true if the image for imageUrl is known to be on disk. This
+	 *         never touches the file system, so it's safe on the UI thread,
+	 *         but it can't tell until a lookup on a background thread has
+	 *         loaded the disk indexes.
+	 */
+	boolean isOnDisk(String imageUrl) {
+		String name = digest(imageUrl);
+		DiskIndex index = getJournal().getIndex();
+		return (index.isLoaded() && index.mightContain(name))
+				|| (mPermanentIndex.isLoaded() && mPermanentIndex.mightContain(name));
+	}
+
+	/**
+	 * @return true if the image for imageUrl is on disk and may be used
+	 *         without asking the server. Touches the file system, so not
+	 *         for the UI thread.
+	 */
+	boolean isFreshOnDisk(String imageUrl) {
+		File imageFile = findImageFile(imageUrl);
+		return imageFile != null && isFresh(imageFile);
+	}
+
+	/**
+	 * Scans the permanent cache directory the first time it's needed.
+	 */
+	private DiskIndex loadPermanentIndex() {
+		synchronized (mPermanentIndex) {
+			if (!mPermanentIndex.isLoaded()) {
+				List<String> names = new ArrayList<String>();
+				File[] shards = mPermanentCacheDir.listFiles();
+				if (shards != null) {
+					for (File shard : shards) {
+						String[] files = shard.list();
+						if (files == null) {
+							continue;
+						}
+						for (String file : files) {
+							if (!file.endsWith(TEMP_FILE_SUFFIX) && !file.endsWith(METADATA_SUFFIX)) {
+								names.add(file);
+							}
+						}
+					}
+				}
+				mPermanentIndex.load(names);
+			}
+		}
+		return mPermanentIndex;
+	}
+
+	/**
+	 * @return true unless the server's freshness lifetime for the entry in
+	 *         imageFile has passed.
+	 */
+	private boolean isFresh(File imageFile) {
+		if (imageFile.getName().endsWith(TEMP_FILE_SUFFIX)) {
+			// Just downloaded
+			return true;
+		}
+		CacheMetadata metadata = CacheMetadata.read(getMetadataFile(imageFile));
+		return metadata == null || metadata.isFresh(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return What the server told us about the image on disk for imageUrl,
+	 *         or null if it isn't on disk or we don't know anything about it.
+	 */
+	CacheMetadata getMetadata(String imageUrl) {
+		File imageFile = findImageFile(imageUrl);
+		if (imageFile == null || imageFile.getName().endsWith(TEMP_FILE_SUFFIX)) {
+			return null;
+		}
+		return CacheMetadata.read(getMetadataFile(imageFile));
+	}
+
+	/**
+	 * Marks the image on disk as fresh again after the server answered a
+	 * conditional request with 304 Not Modified.
+	 * @param notModified What the server told us about the image this time.
+	 * @return false if the image is no longer on disk.
+	 */
+	boolean revalidate(String imageUrl, CacheMetadata notModified) {
+		synchronized (getDiskLock(imageUrl)) {
+			File imageFile = findImageFile(imageUrl);
+			if (imageFile == null || imageFile.getName().endsWith(TEMP_FILE_SUFFIX)) {
+				return false;
+			}
+			File metadataFile = getMetadataFile(imageFile);
+			CacheMetadata metadata = CacheMetadata.read(metadataFile);
+			(metadata != null ? metadata.update(notModified) : notModified).write(metadataFile);
+			return true;
+		}
+	}
+
+	private Object getDiskLock(String imageUrl) {
+		// Spread the hash, String.hashCode() is weak in its low bits
+		int hash = imageUrl.hashCode();
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		hash ^= (hash >>> 7) ^ (hash >>> 4);
+		return mDiskLocks[hash & (DISK_LOCK_STRIPES - 1)];
+	}
+
 	/**
 	 * Writes the provided image data to on-disk cache and simultaneously
 	 * decodes it to a bitmap and stores it in the in-memory cache.
@@ -281,6 +650,112 @@ public class ImageCache {
 	 * @throws IOException
 	 */
 	public Bitmap put(String imageUrl, InputStream data, boolean cachePermanently) throws IOException {
+		return put(imageUrl, data, cachePermanently, 0, 0);
+	}
+
+	/**
+	 * Writes the provided image data to on-disk cache and decodes it,
+	 * downsampled to no less than reqWidth x reqHeight, into the in-memory
+	 * cache.
+	 *
+	 * @param reqWidth
+	 *            The width the image will be displayed at, or 0 for full size.
+	 * @param reqHeight
+	 *            The height the image will be displayed at, or 0 for full size.
+	 * @see #put(String, InputStream, boolean)
+	 */
+	public Bitmap put(String imageUrl, InputStream data, boolean cachePermanently, int reqWidth,
+			int reqHeight) throws IOException {
+		Bitmap image = putAndAcquire(imageUrl, data, cachePermanently, reqWidth, reqHeight);
+		markEscaped(image);
+		release(image);
+		return image;
+	}
+
+	/**
+	 * Same as {@link #put(String, InputStream, boolean, int, int)}, but the
+	 * returned bitmap is acquired from the bitmap pool and must be handed back
+	 * with {@link #release(Bitmap)}.
+	 */
+	Bitmap putAndAcquire(String imageUrl, InputStream data, boolean cachePermanently, int reqWidth,
+			int reqHeight) throws IOException {
+		return putAndAcquire(imageUrl, data, cachePermanently, reqWidth, reqHeight, -1, null);
+	}
+
+	/**
+	 * The download is written to a temporary file which only replaces the
+	 * cache file once the image decoded and all of it arrived, so readers
+	 * never see a partial file. Depending on the durability mode, that happens
+	 * after the image has been returned, see {@link #setDurability(int)}.
+	 *
+	 * @param contentLength
+	 *            The number of bytes data should yield, or -1 if unknown.
+	 * @param metadata
+	 *            What the server told us about the image, stored next to it
+	 *            for revalidating it later. May be null.
+	 * @throws IOException
+	 *             if reading data fails or it ended short of contentLength.
+	 */
+	Bitmap putAndAcquire(String imageUrl, InputStream data, boolean cachePermanently, int reqWidth,
+			int reqHeight, long contentLength, CacheMetadata metadata) throws IOException {
+		return commitAndAcquire(write(imageUrl, data, cachePermanently, contentLength, metadata),
+				reqWidth, reqHeight);
+	}
+
+	/**
+	 * A download that landed in a temp file, but hasn't been decoded and
+	 * moved into place yet. Several requests for different sizes can share
+	 * it, the last of them to be done with it moves it into place.
+	 */
+	static class PendingEntry {
+		final String url;
+		final File tempFile;
+		final File imageFile;
+		final CacheMetadata metadata;
+		/** How many have yet to decode it or give up on it. Guarded by this */
+		private int mUsers = 1;
+		/** Whether any of them decoded it. Guarded by this */
+		private boolean mDecoded;
+		/** Whether any of them tried to decode it. Guarded by this */
+		private boolean mTried;
+
+		PendingEntry(String url, File tempFile, File imageFile, CacheMetadata metadata) {
+			this.url = url;
+			this.tempFile = tempFile;
+			this.imageFile = imageFile;
+			this.metadata = metadata;
+		}
+
+		/**
+		 * Lets count more requests decode the download. Each of them has to
+		 * hand it to {@link ImageCache#commitAndAcquire(PendingEntry, int, int)}
+		 * or {@link ImageCache#commit(PendingEntry)}.
+		 */
+		synchronized void share(int count) {
+			mUsers += count;
+		}
+
+		/**
+		 * @return true if this was the last user, who stores or deletes the file.
+		 */
+		private synchronized boolean release(boolean tried, boolean decoded) {
+			mTried |= tried;
+			mDecoded |= decoded;
+			return --mUsers == 0;
+		}
+	}
+
+	/**
+	 * Writes the image data to a temp file, without decoding it, so the
+	 * network thread can move on while it's decoded elsewhere. Hand the
+	 * result to {@link #commitAndAcquire(PendingEntry, int, int)} or
+	 * {@link #commit(PendingEntry)}.
+	 *
+	 * @throws IOException
+	 *             if reading data fails or it ended short of contentLength.
+	 */
+	PendingEntry write(String imageUrl, InputStream data, boolean cachePermanently, long contentLength,
+			CacheMetadata metadata) throws IOException {
 		incrementAndTrim();
 		File imageFile;
 		// NOTE: Android can clear the cache at any time, so we need to make sure our directories
@@ -292,15 +767,24 @@ public class ImageCache {
 			this.mSecondLevelCacheDir.mkdirs();
 			imageFile = getImageFile(this.mSecondLevelCacheDir, imageUrl);
 		}
+		File tempFile = getTempFile(imageFile);
 		FileWritingInputStream stream = null;
 		try {
-			stream = new FileWritingInputStream(data, new FileOutputStream(imageFile));
+			tempFile.getParentFile().mkdirs();
+			FileOutputStream output = new FileOutputStream(tempFile);
+			try {
+				writeEntryHeader(output, imageUrl);
+			} catch (IOException e) {
+				output.close();
+				throw new FileNotFoundException("Could not write to " + tempFile);
+			}
+			stream = new FileWritingInputStream(data, output);
 		} catch (FileNotFoundException e) {
 			// SD card may have been unmounted and is now inaccessible
 			if (isUsingExternalCache()) {
 				updateExternalStorageState(mContext);
 				if (!isUsingExternalCache()) {
-					return put(imageUrl, data, cachePermanently);
+					return write(imageUrl, data, cachePermanently, contentLength, metadata);
 				} else {
 					throw e;
 				}
@@ -308,25 +792,350 @@ public class ImageCache {
 				throw e;
 			}
 		}
+		boolean complete = false;
+		try {
+			try {
+				byte[] buffer = new byte[BUFFER_SIZE];
+				while (stream.read(buffer) != -1) {
+					// Just writing to the file
+				}
+			} finally {
+				stream.close();
+			}
+			if (contentLength >= 0 && stream.getCount() != contentLength) {
+				throw new IOException("Expected " + contentLength + " bytes for " + imageUrl + " but got "
+						+ stream.getCount());
+			}
+			complete = true;
+		} catch (IOException e) {
+			// We might be out of external storage space. The data is spent, so
+			// fail over to internal and let the retry land there
+			if (stream.isWriteFailed() && isUsingExternalCache()) {
+				updateExternalStorageState(mContext);
+			}
+			throw e;
+		} finally {
+			if (!complete) {
+				tempFile.delete();
+			}
+		}
+		return new PendingEntry(imageUrl, tempFile, imageFile, metadata);
+	}
+
+	/**
+	 * Decodes a download into the in-memory cache and, if it is an image,
+	 * moves it into place on disk.
+	 * @return The bitmap, acquired from the bitmap pool, or null if the
+	 *         download wasn't an image.
+	 */
+	Bitmap commitAndAcquire(PendingEntry entry, int reqWidth, int reqHeight) {
+		CacheKey key = new CacheKey(entry.url, reqWidth, reqHeight, mOptions.getConfig());
 		Bitmap image = null;
 		try {
-			image = BitmapFactory.decodeStream(stream, null, OPTIONS.getOptions());
+			// No need to wait for the file to be moved into place
+			image = decodeAndCache(key, entry.tempFile);
 		} finally {
-			stream.close();
+			release(entry, true, image != null);
 		}
-		if (image == null) { // Delete potentially corrupt partial file
-			imageFile.delete();
-			// We might be out of external storage space, fail over to internal and retry
-			if (isUsingExternalCache()) {
+		return image;
+	}
+
+	/**
+	 * Moves a download into place on disk without decoding it, for images
+	 * nobody is looking at yet. Unless someone decoded it, the bounds are
+	 * decoded to make sure it's an image.
+	 * @return false if the download wasn't an image or couldn't be stored.
+	 *         true if others sharing it have yet to decode it.
+	 */
+	boolean commit(PendingEntry entry) {
+		return release(entry, false, false);
+	}
+
+	/**
+	 * Stores or deletes a shared download once its last user is done.
+	 * @return false if the download wasn't stored.
+	 */
+	private boolean release(PendingEntry entry, boolean tried, boolean decoded) {
+		if (!entry.release(tried, decoded)) {
+			// Someone else is still decoding it and will store it
+			return true;
+		}
+		boolean stored = false;
+		try {
+			boolean anyDecoded;
+			boolean anyTried;
+			synchronized (entry) {
+				anyDecoded = entry.mDecoded;
+				anyTried = entry.mTried;
+			}
+			// Don't bother keeping it if it isn't an image
+			if (anyDecoded || (!anyTried && decodeBounds(entry.tempFile, entry.url) != null)) {
+				stored = commit(entry.tempFile, entry.imageFile, entry.metadata);
+			}
+		} finally {
+			if (!stored) {
+				entry.tempFile.delete();
+			}
+		}
+		return stored;
+	}
+
+	/**
+	 * Moves the complete temp file into place, in the background unless the
+	 * durability mode asks for it to be synced first.
+	 * @return false if the file couldn't be stored, or the server asked us
+	 *         not to store it.
+	 */
+	private boolean commit(File tempFile, File imageFile, CacheMetadata metadata) {
+		if (metadata != null && metadata.noStore) {
+			// Only kept on disk while it was decoded, the caller deletes it
+			return false;
+		}
+		switch (mDurability) {
+		case DURABILITY_BATCHED:
+			mDiskWriter.enqueue(tempFile, imageFile, metadata);
+			return true;
+		case DURABILITY_SYNC:
+			if (!DiskWriter.sync(tempFile)) {
+				return false;
+			}
+			return moveIntoPlace(tempFile, imageFile, metadata);
+		default:
+			return moveIntoPlace(tempFile, imageFile, metadata);
+		}
+	}
+
+	/**
+	 * Replaces imageFile with the complete tempFile and accounts for it.
+	 */
+	boolean moveIntoPlace(File tempFile, File imageFile, CacheMetadata metadata) {
+		if (!moveFile(tempFile, imageFile)) {
+			// The SD card may be full or gone, have later downloads fail over
+			if (isUsingExternalCache() && imageFile.getPath().startsWith(mExternalCacheDir.getPath())) {
 				updateExternalStorageState(mContext);
-				if (!isUsingExternalCache()) {
-					return put(imageUrl, data, cachePermanently);
-				}
 			}
+			return false;
+		}
+		// After the image, so a crash in between leaves the old validators,
+		// which just won't match
+		File metadataFile = getMetadataFile(imageFile);
+		if (metadata != null) {
+			metadata.write(metadataFile);
 		} else {
-			mCache.put(imageUrl, image);
+			metadataFile.delete();
 		}
-		return image;
+		DiskCacheJournal journal = getJournal();
+		if (journal.isInDirectory(imageFile)) {
+			journal.recordPut(imageFile);
+		} else if (mPermanentCacheDir.equals(imageFile.getParentFile().getParentFile())) {
+			mPermanentIndex.add(imageFile.getName());
+		}
+		return true;
+	}
+
+	/**
+	 * Atomically replaces to with from, where the file system allows.
+	 */
+	private static boolean moveFile(File from, File to) {
+		if (from.renameTo(to)) {
+			return true;
+		}
+		// FAT formatted SD cards won't rename over an existing file
+		if (to.delete() && from.renameTo(to)) {
+			return true;
+		}
+		Log.w(TAG, "Could not move " + from + " to " + to);
+		return false;
+	}
+
+	/**
+	 * @return A new file next to imageFile that nothing else writes to, even
+	 *         while earlier writes of the same image are waiting to be synced.
+	 */
+	private static File getTempFile(File imageFile) {
+		return new File(imageFile.getParentFile(), imageFile.getName() + "."
+				+ TEMP_FILE_COUNTER.incrementAndGet() + TEMP_FILE_SUFFIX);
+	}
+
+	/**
+	 * Decodes the image file, downsampled to the size in the key, and puts it
+	 * in the in-memory cache. If it didn't need downsampling, it's cached as
+	 * the full size variant so every request can use it.
+	 * @return The bitmap, acquired from the bitmap pool, or null.
+	 */
+	private Bitmap decodeAndCache(CacheKey key, File imageFile) {
+		BitmapFactory.Options bounds = decodeBounds(imageFile, key.url);
+		if (bounds == null) {
+			// Someone else's image, or unreadable
+			return null;
+		}
+		int inSampleSize = calculateInSampleSize(bounds, key.width, key.height);
+		Bitmap bitmap = decodeFile(imageFile, key.url, bounds, inSampleSize);
+		if (bitmap != null) {
+			if (inSampleSize == 1 && !key.isFullSize()) {
+				key = new CacheKey(key.url, 0, 0, key.config);
+			}
+			cacheAndAcquire(key, bitmap);
+		}
+		return bitmap;
+	}
+
+	private void cacheAndAcquire(CacheKey key, Bitmap bitmap) {
+		synchronized (mPool) {
+			mCache.put(key, bitmap);
+			if (mCache.peek(key) == bitmap) {
+				Set<CacheKey> variants = mVariants.get(key.url);
+				if (variants == null) {
+					variants = new HashSet<CacheKey>();
+					mVariants.put(key.url, variants);
+				}
+				variants.add(key);
+			}
+			mPool.acquire(bitmap);
+		}
+	}
+
+	/**
+	 * Hands back a bitmap acquired from this cache. Once it has also been
+	 * evicted from memory, its pixels may be reused for another image.
+	 */
+	void release(Bitmap bitmap) {
+		mPool.release(bitmap);
+	}
+
+	/**
+	 * Takes another reference on a bitmap acquired from this cache.
+	 */
+	void acquire(Bitmap bitmap) {
+		mPool.acquire(bitmap);
+	}
+
+	/**
+	 * Marks the bitmap as given away to code that won't release it, so its
+	 * pixels are never reused.
+	 */
+	void markEscaped(Bitmap bitmap) {
+		mPool.markEscaped(bitmap);
+	}
+
+	/**
+	 * Decodes the given file downsampled to no less than reqWidth x reqHeight,
+	 * or at full size if either is 0.
+	 */
+	Bitmap decodeFile(String path, int reqWidth, int reqHeight) {
+		File file = new File(path);
+		BitmapFactory.Options bounds = decodeBounds(file, null);
+		if (bounds == null) {
+			return null;
+		}
+		return decodeFile(file, null, bounds, calculateInSampleSize(bounds, reqWidth, reqHeight));
+	}
+
+	/**
+	 * Decodes the given file, reusing the pixels of a pooled bitmap of the
+	 * same dimensions if there is one.
+	 * @param imageUrl If not null, the file is a cache entry for this URL.
+	 */
+	private Bitmap decodeFile(File file, String imageUrl, BitmapFactory.Options bounds, int inSampleSize) {
+		BitmapFactory.Options options = inSampleSize > 1 ? mOptions.getOptions()
+				: mOptions.getOptions(bounds.outWidth, bounds.outHeight);
+		options.inSampleSize = inSampleSize;
+		try {
+			return decodeStream(file, imageUrl, options);
+		} catch (IllegalArgumentException e) {
+			// The decoder refused the pooled bitmap, decode into a new one instead
+			options = mOptions.getOptions();
+			options.inSampleSize = inSampleSize;
+			return decodeStream(file, imageUrl, options);
+		}
+	}
+
+	/**
+	 * @return Options holding the dimensions of the image in the file, or
+	 *         null if it can't be read.
+	 */
+	private static BitmapFactory.Options decodeBounds(File file, String imageUrl) {
+		BitmapFactory.Options bounds = new BitmapFactory.Options();
+		bounds.inJustDecodeBounds = true;
+		decodeStream(file, imageUrl, bounds);
+		return bounds.outWidth > 0 && bounds.outHeight > 0 ? bounds : null;
+	}
+
+	private static Bitmap decodeStream(File file, String imageUrl, BitmapFactory.Options options) {
+		InputStream stream = null;
+		try {
+			stream = imageUrl == null ? new FileInputStream(file) : openEntry(file, imageUrl);
+			if (stream == null) {
+				return null;
+			}
+			return BitmapFactory.decodeStream(new BufferedInputStream(stream, DECODE_BUFFER_SIZE),
+					null, options);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// Nothing to be done
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the header every cache file starts with, which records the URL
+	 * it was downloaded from.
+	 */
+	static void writeEntryHeader(FileOutputStream file, String imageUrl) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(header);
+		output.writeInt(ENTRY_MAGIC);
+		output.writeUTF(imageUrl);
+		output.flush();
+		// One write rather than one per field
+		header.writeTo(file);
+	}
+
+	/**
+	 * Opens a cache file and skips its header.
+	 * @return A stream of the image data, or null if the file was written for
+	 *         a different URL or by an older version of this cache.
+	 */
+	public static InputStream openEntry(File file, String imageUrl) throws IOException {
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		boolean matches = false;
+		try {
+			matches = input.readInt() == ENTRY_MAGIC && imageUrl.equals(input.readUTF());
+		} catch (IOException e) {
+			// Truncated or not ours
+		} finally {
+			if (!matches) {
+				input.close();
+			}
+		}
+		if (!matches) {
+			Log.w(TAG, file + " does not hold " + imageUrl);
+			return null;
+		}
+		return input;
+	}
+
+	/**
+	 * Picks the largest power of two sample size that keeps both dimensions
+	 * of the decoded image at or above the requested ones. Powers of two are
+	 * what the decoder handles natively.
+	 */
+	static int calculateInSampleSize(BitmapFactory.Options bounds, int reqWidth, int reqHeight) {
+		int inSampleSize = 1;
+		if (reqWidth <= 0 || reqHeight <= 0) {
+			return inSampleSize;
+		}
+		while (bounds.outWidth / (inSampleSize * 2) >= reqWidth
+				&& bounds.outHeight / (inSampleSize * 2) >= reqHeight) {
+			inSampleSize *= 2;
+		}
+		return inSampleSize;
 	}
 
 	private void incrementAndTrim() {
@@ -336,66 +1145,72 @@ public class ImageCache {
 		}
 	}
 
+	/**
+	 * Sets how hard we try to make sure downloaded images survive a crash.
+	 * Defaults to {@link #DURABILITY_BATCHED}.
+	 * @param durability One of {@link #DURABILITY_NONE},
+	 *        {@link #DURABILITY_BATCHED} or {@link #DURABILITY_SYNC}.
+	 */
+	public void setDurability(int durability) {
+		mDurability = durability;
+	}
+
 	public void clear() {
-		mCache.clear();
+		mCache.evictAll();
+		mPool.clear();
 	}
 
+	/**
+	 * Cache files are named after the MD5 digest of their URL and sharded
+	 * into subdirectories by the first byte of the digest, so no directory
+	 * gets too big. The file starts with a header holding the URL, see
+	 * {@link #openEntry(File, String)}.
+	 */
 	File getImageFile(File directory, String imageUrl) {
-		String fileName = Integer.toHexString(imageUrl.hashCode());
-		return new File(directory, fileName);
+		return getShardedFile(directory, digest(imageUrl));
+	}
+
+	private static File getShardedFile(File directory, String fileName) {
+		return new File(new File(directory, fileName.substring(0, 2)), fileName);
+	}
+
+	/**
+	 * @return The file holding the {@link CacheMetadata} for imageFile.
+	 */
+	static File getMetadataFile(File imageFile) {
+		return new File(imageFile.getPath() + METADATA_SUFFIX);
+	}
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	static String digest(String imageUrl) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			byte[] bytes = digest.digest(imageUrl.getBytes("UTF-8"));
+			char[] hex = new char[bytes.length * 2];
+			for (int i = 0; i < bytes.length; i++) {
+				hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+				hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
 	}
 
 	/**
 	 * Trim the disc cache from droid fu to be of the size we want.
-	 * Oldest files should be deleted first.
+	 * Least recently used files are deleted first.
 	 *
 	 * @author greg
 	 */
 	public void trimCache() {
-		File dir = mSecondLevelCacheDir;
-		synchronized(mSecondLevelCacheDir) {
-			if (dir.exists() && dir.isDirectory()) {
-				File[] files = dir.listFiles();
-				if (files != null) {
-					try {
-						// Have the newest files first
-						Arrays.sort(files, FILE_COMPARATOR);
-						Log.i(TAG, "Sorting by oldest last");
-					} catch(RuntimeException e) {
-						try {
-							Arrays.sort(files, FILE_COMPARATOR_FALLBACK);
-							Log.w(TAG, "Purging files by file name comparision rather than age");
-						} catch(RuntimeException e1) {
-							Log.w(TAG, "Tried to purge cache in a smart order, but failed ... going to purge randomly");
-						}
-					}
-					long sizeOnDisk = 0;
-					long longSizeOneDay = System.currentTimeMillis() - DateUtils.DAY_IN_MILLIS;
-					int numberOfFiles = 0;
-					for (File file : files) {
-						int maxSize = this.isUsingExternalCache() ? MAX_EXTERNAL : MAX_INTERNAL;
-						if (sizeOnDisk < maxSize && longSizeOneDay > file.lastModified()) {
-							// Count until MAX
-							sizeOnDisk += file.length();
-						} else {
-							// Then the rest of the files are old
-							// and we want to delete them
-							numberOfFiles++;
-							// Should be safe since it's the lowest level cache
-							if (!file.delete()) {
-								// Not guaranteed to do anything, but it's an attempt
-								// android makes it hard to define, onExit();
-								file.deleteOnExit();
-							}
-						}
-					}
-					Log.d(TAG, String.format("Purged %d files and left with %d bytes on disk", numberOfFiles, sizeOnDisk));
-				}
-			}
-			// Trim permanent cache for any file older than a week
-			long oneWeekAgo = System.currentTimeMillis() - (DateUtils.DAY_IN_MILLIS * 7);
-			clearDirectory(mPermanentCacheDir, oneWeekAgo);
-		}
+		getJournal().trimToSize();
+		// Trim permanent cache for any file older than a week
+		long oneWeekAgo = System.currentTimeMillis() - (DateUtils.DAY_IN_MILLIS * 7);
+		clearDirectory(mPermanentCacheDir, oneWeekAgo, mPermanentIndex);
 	}
 
 	/**
@@ -406,13 +1221,29 @@ public class ImageCache {
 	 * @param olderThanDate
 	 */
 	static void clearDirectory(File directory, long olderThanDate) {
+		clearDirectory(directory, olderThanDate, null);
+	}
+
+	/**
+	 * @param index Has the deleted files removed from it, may be null.
+	 */
+	private static void clearDirectory(File directory, long olderThanDate, DiskIndex index) {
 		File[] files = directory.listFiles();
 		if (files != null && files.length > 0) {
 			for (File file : files) {
-				if (file.lastModified() < olderThanDate) {
+				if (file.isDirectory()) {
+					// One of our shards
+					clearDirectory(file, olderThanDate, index);
+				} else if (file.getName().endsWith(METADATA_SUFFIX)) {
+					// Goes with its image
+				} else if (file.lastModified() < olderThanDate) {
 					if (!file.delete()) {
 						file.deleteOnExit();
 					}
+					getMetadataFile(file).delete();
+					if (index != null) {
+						index.remove(file.getName());
+					}
 				}
 			}
 		}
@@ -451,25 +1282,88 @@ public class ImageCache {
 		}
 	}
 
-	private static final Comparator<File> FILE_COMPARATOR = new Comparator<File>() {
+	/**
+	 * Identifies one decoded variant of an image in the in-memory cache: the
+	 * same URL decoded for different target sizes or configs is cached
+	 * independently. A width and height of 0 stands for the full size image.
+	 */
+	static final class CacheKey {
+		final String url;
+		final int width;
+		final int height;
+		final Bitmap.Config config;
+
+		CacheKey(String url, int width, int height, Bitmap.Config config) {
+			this.url = url;
+			// A single missing dimension can't be downsampled against either
+			boolean fullSize = width <= 0 || height <= 0;
+			this.width = fullSize ? 0 : width;
+			this.height = fullSize ? 0 : height;
+			this.config = config;
+		}
+
+		boolean isFullSize() {
+			return width == 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof CacheKey)) {
+				return false;
+			}
+			CacheKey other = (CacheKey) o;
+			return width == other.width && height == other.height && config == other.config
+					&& url.equals(other.url);
+		}
+
 		@Override
-		public int compare(File object1, File object2) {
-			int diff = (int) (object2.lastModified() - object1.lastModified());
-			return diff != 0 ? diff : object2.compareTo(object1);
+		public int hashCode() {
+			int result = url.hashCode();
+			result = 31 * result + width;
+			result = 31 * result + height;
+			result = 31 * result + (config == null ? 0 : config.hashCode());
+			return result;
 		}
-	};
 
-	private static final Comparator<File> FILE_COMPARATOR_FALLBACK = new Comparator<File>() {
 		@Override
-		public int compare(File object1, File object2) {
-			return object2.getName().compareTo(object2.getName());
+		public String toString() {
+			return url + " @" + width + "x" + height + " " + config;
 		}
-	};
+	}
+
+	private static OptionsFactory createOptionsFactory(BitmapPool pool) {
+		int sdk = Integer.valueOf(VERSION.SDK);
+		if (sdk >= Build.VERSION_CODES.HONEYCOMB) {
+			return new ReusingOptionsFactory(pool);
+		} else if (sdk >= Build.VERSION_CODES.DONUT) {
+			return new EfficientOptionsFactory();
+		} else {
+			return new OptionsFactory();
+		}
+	}
 
 	private static class OptionsFactory {
 		public BitmapFactory.Options getOptions() {
 			return new BitmapFactory.Options();
 		}
+
+		/**
+		 * The config images are decoded to, null meaning the decoder's default.
+		 */
+		public Bitmap.Config getConfig() {
+			return getOptions().inPreferredConfig;
+		}
+
+		/**
+		 * Options for decoding an image of the given size, which may carry a
+		 * bitmap to decode into.
+		 */
+		public BitmapFactory.Options getOptions(int width, int height) {
+			return getOptions();
+		}
 	}
 
 	private static class EfficientOptionsFactory extends OptionsFactory {
@@ -482,4 +1376,37 @@ public class ImageCache {
 			return options;
 		}
 	}
+
+	/**
+	 * Decodes into mutable bitmaps so they can be pooled once evicted, and
+	 * reuses pooled bitmaps when the dimensions of the image are known up
+	 * front. Purgeable bitmaps can't be reused, so those are off here.
+	 */
+	@TargetApi(11)
+	private static class ReusingOptionsFactory extends OptionsFactory {
+
+		private final BitmapPool mPool;
+
+		public ReusingOptionsFactory(BitmapPool pool) {
+			mPool = pool;
+		}
+
+		@Override
+		public Options getOptions() {
+			Options options = super.getOptions();
+			options.inMutable = true;
+			return options;
+		}
+
+		@Override
+		public Options getOptions(int width, int height) {
+			Options options = getOptions();
+			if (width > 0 && height > 0) {
+				Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig
+						: Bitmap.Config.ARGB_8888;
+				options.inBitmap = mPool.get(width, height, config);
+			}
+			return options;
+		}
+	}
 }
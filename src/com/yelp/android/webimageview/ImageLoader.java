@@ -16,14 +16,13 @@
 package com.yelp.android.webimageview;
 
 import com.yelp.android.webimageview.WebImageView.WebImageLoaderHandler;
+import com.yelp.common.collect.MapMaker;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.media.ExifInterface;
 import android.net.ConnectivityManager;
@@ -31,22 +30,27 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.net.URLConnection;
+import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -65,26 +69,97 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 public class ImageLoader implements Runnable {
 
+	/** Looks images up on disk and decodes them, one thread per CPU */
 	private static PausableThreadPoolExecutor executor;
+	/** Downloads images to disk, which is mostly waiting */
+	private static PausableThreadPoolExecutor networkExecutor;
 
 	public static ImageCache imageCache;
 
-	private static final int DEFAULT_POOL_SIZE = 2;
+	private static Downloader downloader;
+
+	private static final int DEFAULT_POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+	private static final int DEFAULT_NETWORK_POOL_SIZE = 4;
+
+	/** Where a loader is in the pipeline, which decides the executor it runs on */
+	private static final int STAGE_CACHE = 0;
+	private static final int STAGE_NETWORK = 1;
+	private static final int STAGE_DECODE = 2;
+
+	/** Scheduling classes, a loader in a lower class never runs ahead of a higher one */
+	private static final int CLASS_REQUEST = 0;
+	private static final int CLASS_PREFETCH = 1;
+	private static final int CLASS_PRELOAD = 2;
+
+	/** How a download others were waiting for turned out, see releaseFollowers() */
+	private static final int FOLLOW_DOWNLOADED = 0;
+	private static final int FOLLOW_ON_DISK = 1;
+	private static final int FOLLOW_FAILED = 2;
+	private static final int FOLLOW_ABANDONED = 3;
 
 	public static final int HANDLER_MESSAGE_ID = 0;
+	/**
+	 * Sent instead of an image when the request was dropped to keep the queue
+	 * bounded, or its group was cancelled
+	 */
+	public static final int HANDLER_MESSAGE_DROPPED = 1;
 
 	public static final String BITMAP_EXTRA = "droidfu:extra_bitmap";
 
-	private static int numAttempts = 3;
+	private static RetryPolicy retryPolicy = new RetryPolicy(3, 1000, 16000);
+
+	/**
+	 * Puts failed loaders back on the queue once their retry delay has passed,
+	 * runs the watchdog and stores downloads nobody is waiting for anymore
+	 */
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	/** Loaders that missed the caches while network requests are held. Guarded by itself */
+	private static final List<ImageLoader> HELD = new ArrayList<ImageLoader>();
+	/** Guarded by HELD */
+	private static boolean networkHeld;
+
+	private static final long DEFAULT_REQUEST_TIMEOUT = 60 * 1000;
+	private static long requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+	/** How often the watchdog looks for requests past their deadline */
+	private static final long WATCHDOG_INTERVAL = 5 * 1000;
+
+	private static volatile ImageLoaderMetrics metrics;
 
 	private static ReferenceWatcher<ImageLoader> REQUESTS;
+
+	/**
+	 * Loaders that are queued or running, by {@link #getRequestKey()}. Requests
+	 * for an image that is already on its way attach to the existing loader.
+	 */
+	private static final ConcurrentMap<String, ImageLoader> IN_FLIGHT = new MapMaker().makeMap();
+	/**
+	 * Loaders that are downloading, by {@link #getDownloadKey()}. Loaders for
+	 * the same image at other sizes wait for that download rather than
+	 * fetching it again, and then decode it at their own size.
+	 */
+	private static final ConcurrentMap<String, ImageLoader> DOWNLOADS = new MapMaker().makeMap();
+	/**
+	 * Outstanding requests by group, see pauseGroup(). Weakly keyed, and
+	 * handlers only hold their group weakly, so groups don't leak Activities
+	 */
+	private static final ConcurrentMap<Object, RequestGroup> GROUPS = new MapMaker().weakKeys().makeMap();
 	/**
 	 * @param numThreads
 	 *        the maximum number of threads that will be started to download
 	 *        images in parallel
 	 */
 	public static void setThreadPoolSize(int numThreads) {
-		executor.setMaximumPoolSize(numThreads);
+		// The core size is what counts with an unbounded queue, and can't
+		// exceed the maximum
+		if (numThreads > networkExecutor.getMaximumPoolSize()) {
+			networkExecutor.setMaximumPoolSize(numThreads);
+			networkExecutor.setCorePoolSize(numThreads);
+		} else {
+			networkExecutor.setCorePoolSize(numThreads);
+			networkExecutor.setMaximumPoolSize(numThreads);
+		}
 	}
 
 	/**
@@ -93,7 +168,35 @@ public class ImageLoader implements Runnable {
 	 *        network connection fails
 	 */
 	public static void setMaxDownloadAttempts(int numAttempts) {
-		ImageLoader.numAttempts = numAttempts;
+		retryPolicy = new RetryPolicy(numAttempts, retryPolicy.getInitialDelay(), retryPolicy.getMaxDelay());
+	}
+
+	/**
+	 * @param policy
+	 *        decides when failed downloads are tried again, unless the
+	 *        request's {@link ImageLoaderHandler#retryPolicy} says otherwise
+	 */
+	public static void setRetryPolicy(RetryPolicy policy) {
+		retryPolicy = policy;
+	}
+
+	/**
+	 * @param timeoutMillis
+	 *        how long a request may take, retries included, from when it
+	 *        starts downloading until it is aborted, unless the request's
+	 *        {@link ImageLoaderHandler#timeout} says otherwise. Timeouts for
+	 *        each connect and read are up to the {@link Downloader}.
+	 */
+	public static void setRequestTimeout(long timeoutMillis) {
+		requestTimeout = timeoutMillis;
+	}
+
+	/**
+	 * @param loaderMetrics
+	 *        hears about failed and timed out requests, may be null
+	 */
+	public static void setMetrics(ImageLoaderMetrics loaderMetrics) {
+		metrics = loaderMetrics;
 	}
 
 	/**
@@ -108,41 +211,97 @@ public class ImageLoader implements Runnable {
 	 *        the current context
 	 */
 	public static synchronized void initialize(final Context context, final UncaughtExceptionHandler exceptionHandler) {
+		initialize(context, exceptionHandler, ImageCache.getDefaultMemoryCacheSize());
+	}
+
+	/**
+	 * Same as {@link #initialize(Context, UncaughtExceptionHandler)}, but lets
+	 * the caller pick the in-memory cache budget.
+	 *
+	 * @param memoryCacheBytes
+	 *        the number of bytes of decoded bitmaps to keep in memory. Only
+	 *        honored by the first call that creates the cache.
+	 */
+	public static synchronized void initialize(final Context context,
+			final UncaughtExceptionHandler exceptionHandler, int memoryCacheBytes) {
+		initialize(context, exceptionHandler, memoryCacheBytes, null);
+	}
+
+	/**
+	 * Same as {@link #initialize(Context, UncaughtExceptionHandler, int)}, but
+	 * lets the caller pick how images are downloaded.
+	 *
+	 * @param imageDownloader
+	 *        fetches the images, or null for a {@link UrlConnectionDownloader}.
+	 *        Only honored by the first call.
+	 */
+	public static synchronized void initialize(final Context context,
+			final UncaughtExceptionHandler exceptionHandler, int memoryCacheBytes, Downloader imageDownloader) {
+		if (downloader == null) {
+			downloader = imageDownloader != null ? imageDownloader : new UrlConnectionDownloader();
+		}
 		if (executor == null) {
 			REQUESTS = new ReferenceWatcher<ImageLoader>();
-			final int MAX_IMAGE_REQUEST_SIZE = 100;
-			final PriorityBlockingQueue<? extends Runnable> queue = 
-					new BoundPriorityBlockingQueue<ImageLoader>(MAX_IMAGE_REQUEST_SIZE, DEFAULT_POOL_SIZE * 12, COMPARE);
-
-			executor = new PausableThreadPoolExecutor (DEFAULT_POOL_SIZE, DEFAULT_POOL_SIZE, 300, TimeUnit.MILLISECONDS, queue);
-			executor.setThreadFactory(new ThreadFactory() {
-				private final AtomicInteger COUNTER = new AtomicInteger();
+			// Disk hits and decodes compete for the CPU, but must not hold up the UI
+			executor = newExecutor(DEFAULT_POOL_SIZE, "ImageLoader-", android.os.Process.THREAD_PRIORITY_BACKGROUND
+					+ android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE, exceptionHandler);
+			networkExecutor = newExecutor(DEFAULT_NETWORK_POOL_SIZE, "ImageLoader-Network-",
+					android.os.Process.THREAD_PRIORITY_BACKGROUND, exceptionHandler);
+			scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
 				@Override
-				public Thread newThread(final Runnable r) {
-					Runnable priorityRunnable = new Runnable() {
-						@Override
-						public void run() {
-							android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_MORE_FAVORABLE);
-							r.run();
-						}
-					};
-					Thread thread = new Thread(priorityRunnable);
+				public Thread newThread(Runnable r) {
+					// Only hands loaders back to the executor, aborts them and commits
+					// their leftover downloads
+					Thread thread = new Thread(r, "ImageLoader-Scheduler");
 					thread.setDaemon(true);
-					thread.setName("ImageLoader-" + COUNTER.incrementAndGet());
-					if (exceptionHandler != null) {
-						thread.setUncaughtExceptionHandler(exceptionHandler);
-					}
 					return thread;
 				}
 			});
-
+			scheduler.scheduleWithFixedDelay(WATCHDOG, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL,
+					TimeUnit.MILLISECONDS);
 		}
 		if (imageCache == null) {
-			imageCache = new ImageCache(context, 25, DEFAULT_POOL_SIZE);
+			imageCache = new ImageCache(context, 25, DEFAULT_POOL_SIZE + DEFAULT_NETWORK_POOL_SIZE,
+					memoryCacheBytes);
 		}
 		context.registerReceiver(RECEIVER, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
 	}
 
+	private static PausableThreadPoolExecutor newExecutor(int poolSize, final String name,
+			final int threadPriority, final UncaughtExceptionHandler exceptionHandler) {
+		final int MAX_IMAGE_REQUEST_SIZE = 100;
+		final BlockingQueue<? extends Runnable> queue =
+				new BoundPriorityBlockingQueue<ImageLoader>(MAX_IMAGE_REQUEST_SIZE, COMPARE) {
+			@Override
+			protected void onDropped(ImageLoader loader) {
+				loader.onDropped();
+			}
+		};
+		PausableThreadPoolExecutor stage = new PausableThreadPoolExecutor(poolSize, poolSize, 300,
+				TimeUnit.MILLISECONDS, queue);
+		stage.setThreadFactory(new ThreadFactory() {
+			private final AtomicInteger COUNTER = new AtomicInteger();
+			@Override
+			public Thread newThread(final Runnable r) {
+				Runnable priorityRunnable = new Runnable() {
+					@Override
+					public void run() {
+						android.os.Process.setThreadPriority(threadPriority);
+						r.run();
+					}
+				};
+				Thread thread = new Thread(priorityRunnable);
+				thread.setDaemon(true);
+				thread.setName(name + COUNTER.incrementAndGet());
+				if (exceptionHandler != null) {
+					thread.setUncaughtExceptionHandler(exceptionHandler);
+				}
+				return thread;
+			}
+		});
+		return stage;
+	}
+
 	public static final BroadcastReceiver RECEIVER = new BroadcastReceiver() {
 
 		@Override
@@ -150,23 +309,69 @@ public class ImageLoader implements Runnable {
 			if (!TextUtils.equals(intent.getAction(), ConnectivityManager.CONNECTIVITY_ACTION)) {
 				return;
 			}
+			// Only downloads need the network, what's on disk can still be shown
 			if (intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false)) {
-				executor.pause();
+				networkExecutor.pause();
 			} else {
-				executor.resume();
+				networkExecutor.resume();
 			}
 		}
 	};
 
 	/**
 	 * Enqueues the requested imageUrl to be downloaded to the cache so it will
-	 * be ready to be viewed.
+	 * be ready to be viewed. Nothing is done for images already in memory or
+	 * known to be on disk. The image is only written to disk, not decoded, so
+	 * it doesn't push what's on screen out of memory. Preloads wait until
+	 * all other requests have started.
 	 *
 	 * @param imageUrl
 	 */
 	public static void preload(String imageUrl) {
-		if (!TextUtils.isEmpty(imageUrl) && imageCache.get(imageUrl) == null) {
-			executor.execute(new ImageLoader(imageUrl));
+		if (!TextUtils.isEmpty(imageUrl) && !imageCache.isCached(imageUrl) && !imageCache.isOnDisk(imageUrl)) {
+			enqueue(new ImageLoader(imageUrl));
+		}
+	}
+
+	/**
+	 * Decodes the image into memory at the given size ahead of time, so it
+	 * shows right away once a {@link WebImageView} asks for it. Prefetches
+	 * run after requests but before preloads, and among themselves by
+	 * priority. {@link WebImagePrefetcher} does this for lists.
+	 *
+	 * @param reqWidth
+	 *            The width it will be requested at, see
+	 *            {@link #start(String, int, int, ImageLoaderHandler, boolean, boolean)}.
+	 * @param reqHeight
+	 *            The height it will be requested at.
+	 * @param priority
+	 *            Lower goes first.
+	 */
+	public static void prefetch(String imageUrl, int reqWidth, int reqHeight, long priority) {
+		if (TextUtils.isEmpty(imageUrl) || imageCache.isCached(imageUrl, reqWidth, reqHeight)) {
+			return;
+		}
+		ImageLoader loader = new ImageLoader(imageUrl, reqWidth, reqHeight);
+		loader.mPriority = priority;
+		enqueue(loader);
+	}
+
+	/**
+	 * Cancels a prefetch that's no longer needed, unless a request for the
+	 * image is waiting for it by now.
+	 */
+	public static void cancelPrefetch(String imageUrl, int reqWidth, int reqHeight) {
+		if (TextUtils.isEmpty(imageUrl)) {
+			return;
+		}
+		ImageLoader loader = IN_FLIGHT.get(new ImageLoader(imageUrl, reqWidth, reqHeight).getRequestKey());
+		if (loader != null) {
+			synchronized (loader) {
+				if (loader.mSchedulingClass != CLASS_PREFETCH || !loader.mHandlers.isEmpty()) {
+					return;
+				}
+			}
+			loader.cancel();
 		}
 	}
 
@@ -187,15 +392,17 @@ public class ImageLoader implements Runnable {
 	public static void start(String imageUrl, ImageView imageView, boolean savePermenently) {
 		ImageLoader loader = new ImageLoader(imageUrl, imageView, savePermenently);
 		synchronized (imageCache) {
-			Bitmap image = imageCache.get(imageUrl);
+			Bitmap image = imageCache.getAndAcquire(imageUrl, 0, 0);
 			if (image == null) {
 				// fetch the image in the background
-				executor.execute(loader);
+				enqueue(loader);
 			} else if (imageView instanceof WebImageView) {
 				((WebImageView)imageView).setImageBitmap(image, true);
 			} else {
+				imageCache.markEscaped(image);
 				imageView.setImageBitmap(image);
 			}
+			imageCache.release(image);
 		}
 	}
 
@@ -241,17 +448,34 @@ public class ImageLoader implements Runnable {
 	 * @param followCrossRedirects
 	 *            If true, the loader will follow cross HTTP/HTTPS redirects
 	 */
-	public static void start(String imageUrl, int reqWidth, int reqHeight, ImageLoaderHandler handler, 
-			boolean savePermanently, boolean followCrossRedirects) {
+	public static void start(final String imageUrl, final int reqWidth, final int reqHeight,
+			final ImageLoaderHandler handler, final boolean savePermanently, final boolean followCrossRedirects) {
 		ImageLoader loader = new ImageLoader(imageUrl, handler, savePermanently);
+		handler.mLoader = loader;
 		loader.mPriority = handler.priority;
 		loader.mReqWidth = reqWidth;
 		loader.mReqHeight = reqHeight;
 		loader.mFollowCrossRedirects = followCrossRedirects;
-		Bitmap image = imageCache.get(imageUrl);
+		if (handler.retryPolicy != null) {
+			loader.mRetryPolicy = handler.retryPolicy;
+		}
+		if (handler.timeout > 0) {
+			loader.mTimeout = handler.timeout;
+		}
+		Bitmap image = imageCache.getAndAcquire(imageUrl, reqWidth, reqHeight);
 		if (image == null) {
-			// fetch the image in the background
-			executor.execute(loader);
+			Object tag = handler.getGroup();
+			RequestGroup group = tag != null ? getGroup(tag) : null;
+			boolean paused = group != null && !group.add(handler, new Runnable() {
+				@Override
+				public void run() {
+					start(imageUrl, reqWidth, reqHeight, handler, savePermanently, followCrossRedirects);
+				}
+			});
+			if (!paused) {
+				// fetch the image in the background
+				enqueue(loader);
+			}
 		} else if (handler instanceof WebImageLoaderHandler) {
 			WebImageView view = ((WebImageLoaderHandler)handler).getImageView();
 			if (view != null) {
@@ -261,6 +485,220 @@ public class ImageLoader implements Runnable {
 		} else {
 			loader.notifyImageLoaded(image);
 		}
+		imageCache.release(image);
+	}
+
+	/**
+	 * Queues the loader, unless a loader for the same request is already
+	 * queued or running, in which case the new loader's handlers are attached
+	 * to that one and all of them receive its single result.
+	 */
+	private static void enqueue(ImageLoader loader) {
+		if (!loader.mDownloadOnly) {
+			// We'll download it anyway, no need for a preload to do it too.
+			// One that's already downloading is left to finish, we'll wait
+			// for its download rather than start our own
+			ImageLoader preload = IN_FLIGHT.get(loader.getDownloadKey());
+			if (preload != null) {
+				preload.cancelIfQueued();
+			}
+		}
+		String key = loader.getRequestKey();
+		ImageLoader existing;
+		while ((existing = IN_FLIGHT.putIfAbsent(key, loader)) != null) {
+			if (existing.attach(loader)) {
+				return;
+			}
+			// It finished while we were looking, make room for the new loader
+			IN_FLIGHT.remove(key, existing);
+		}
+		executor.execute(loader);
+	}
+
+	/**
+	 * Cancels the request started with the given handler, which won't be
+	 * notified anymore. If no one else is waiting for the image, the download
+	 * is removed from the queue, or aborted if it is already running.
+	 */
+	public static void cancel(ImageLoaderHandler<?> handler) {
+		leaveGroup(handler);
+		ImageLoader loader = handler.mLoader;
+		if (loader != null) {
+			loader.detach(handler);
+		}
+	}
+
+	/**
+	 * Stops the requests of a group, and holds back requests made for it
+	 * until {@link #resumeGroup(Object)}. A loader others are waiting for
+	 * keeps going. Images in memory are still shown right away. Call on the
+	 * UI thread.
+	 *
+	 * @param group
+	 *            The {@link ImageLoaderHandler#getGroup() group} of the requests,
+	 *            for {@link WebImageView}s their Context unless set otherwise.
+	 */
+	public static void pauseGroup(Object group) {
+		for (ImageLoaderHandler<?> handler : getGroup(group).pause()) {
+			ImageLoader loader = handler.mLoader;
+			if (loader != null) {
+				loader.detach(handler);
+			}
+		}
+	}
+
+	/**
+	 * Starts the requests of a paused group over, in the order they were
+	 * made. Call on the UI thread, images in memory are delivered right away.
+	 */
+	public static void resumeGroup(Object group) {
+		RequestGroup requests = GROUPS.get(group);
+		if (requests == null) {
+			return;
+		}
+		for (Runnable restart : requests.resume()) {
+			restart.run();
+		}
+	}
+
+	/**
+	 * Cancels all outstanding requests of a group, for instance when its
+	 * Activity is done. Their handlers get {@link #HANDLER_MESSAGE_DROPPED}.
+	 * Each one is taken off the queue directly, and those others are
+	 * waiting for keep going.
+	 */
+	public static void cancelGroup(Object group) {
+		RequestGroup requests = GROUPS.get(group);
+		if (requests == null) {
+			return;
+		}
+		for (ImageLoaderHandler<?> handler : requests.clear()) {
+			ImageLoader loader = handler.mLoader;
+			if (loader != null) {
+				loader.detach(handler);
+			}
+			handler.sendEmptyMessage(HANDLER_MESSAGE_DROPPED);
+		}
+	}
+
+	private static RequestGroup getGroup(Object tag) {
+		RequestGroup group = GROUPS.get(tag);
+		if (group == null) {
+			RequestGroup created = new RequestGroup();
+			group = GROUPS.putIfAbsent(tag, created);
+			if (group == null) {
+				group = created;
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * Forgets a request that completed or was cancelled.
+	 */
+	private static void leaveGroup(Handler handler) {
+		if (!(handler instanceof ImageLoaderHandler)) {
+			return;
+		}
+		Object tag = ((ImageLoaderHandler<?>) handler).getGroup();
+		RequestGroup group = tag != null ? GROUPS.get(tag) : null;
+		if (group != null) {
+			group.remove((ImageLoaderHandler<?>) handler);
+		}
+	}
+
+	/**
+	 * Keeps new downloads from starting, for instance while a list is
+	 * flinging and most images would be off screen again before they
+	 * arrive. Images in the caches are still loaded. Call
+	 * {@link #releaseNetworkRequests(List)} to let the downloads go.
+	 * {@link WebImageScrollListener} does both for lists.
+	 */
+	public static void holdNetworkRequests() {
+		synchronized (HELD) {
+			networkHeld = true;
+		}
+	}
+
+	/**
+	 * Starts the downloads held since {@link #holdNetworkRequests()}. Those
+	 * for the given handlers go first, in the order given. Held requests
+	 * made only by {@link WebImageView}s that have since been detached or
+	 * given another image are dropped instead. Everything else, such as
+	 * views outside the list, is released after the given handlers.
+	 *
+	 * @param visible
+	 *            The handlers of the images on screen, in the order they
+	 *            should load.
+	 */
+	public static void releaseNetworkRequests(List<? extends ImageLoaderHandler<?>> visible) {
+		// Newer than anything queued so far, and in the order given
+		long priority = Long.MAX_VALUE - SystemClock.elapsedRealtime() - visible.size();
+		for (ImageLoaderHandler<?> handler : visible) {
+			setPriority(handler, priority++);
+		}
+		List<ImageLoader> held;
+		synchronized (HELD) {
+			networkHeld = false;
+			held = new ArrayList<ImageLoader>(HELD);
+			HELD.clear();
+			for (ImageLoader loader : held) {
+				loader.mHeld = false;
+			}
+		}
+		// The queue orders them by their new priorities
+		for (ImageLoader loader : held) {
+			if (loader.mCancelled) {
+				continue;
+			}
+			if (loader.isAbandoned()) {
+				loader.onDropped();
+			} else {
+				loader.handOff(STAGE_NETWORK);
+			}
+		}
+	}
+
+	/**
+	 * @return true if all that waits for this loader are views that went
+	 *         away, were detached or moved on to another request.
+	 */
+	private boolean isAbandoned() {
+		List<Handler> handlers;
+		synchronized (this) {
+			if (mPreload || mHandlers.isEmpty() || (mFollowers != null && !mFollowers.isEmpty())) {
+				return false;
+			}
+			// Views lock themselves before us, so look at them unlocked
+			handlers = new ArrayList<Handler>(mHandlers);
+		}
+		for (Handler handler : handlers) {
+			if (!(handler instanceof WebImageLoaderHandler)) {
+				return false;
+			}
+			WebImageView view = ((WebImageLoaderHandler) handler).getImageView();
+			if (view != null && view.getWindowToken() != null && view.getRequest() == handler) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Changes the priority of a request that's waiting to load, for instance
+	 * when its view comes on screen or goes away. The request moves to its
+	 * new place in the queue right away.
+	 *
+	 * @param priority
+	 *            The new priority, lower loads first. See
+	 *            {@link ImageLoaderHandler}.
+	 */
+	public static void setPriority(ImageLoaderHandler<?> handler, long priority) {
+		handler.priority = priority;
+		ImageLoader loader = handler.mLoader;
+		if (loader != null) {
+			loader.setPriority(loader.getHandlerPriority(), loader.mSchedulingClass);
+		}
 	}
 
 	public static final Set<ImageLoader> getSnapShot() {
@@ -290,22 +728,77 @@ public class ImageLoader implements Runnable {
 	private static final Comparator<ImageLoader> COMPARE = new Comparator<ImageLoader>() {
 		@Override
 		public int compare(ImageLoader object1, ImageLoader object2) {
-			return (int) (object1.mPriority - object2.mPriority);
+			if (object1.mSchedulingClass != object2.mSchedulingClass) {
+				return object1.mSchedulingClass < object2.mSchedulingClass ? -1 : 1;
+			}
+			// Priorities sit near Long.MAX_VALUE, so their difference won't fit in an int
+			long lhs = object1.mPriority;
+			long rhs = object2.mPriority;
+			return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
 		};
 	};
 
 	public final String imageUrl;
-	private Handler handler;
+	/** Everyone waiting for this image. Guarded by this. */
+	private final List<Handler> mHandlers = new ArrayList<Handler>(1);
+	private boolean mFinished;
+	/** Preloads keep going when everyone who attached to them cancels */
+	private final boolean mPreload;
+	/** Only gets the image onto disk, without decoding it */
+	private final boolean mDownloadOnly;
+	/** Loaders in a lower class only run once the higher ones have started */
+	private int mSchedulingClass;
+	/** A priority change that came in while running, for the next stage */
+	private volatile Runnable mNextPriority;
+	private volatile boolean mCancelled;
 	public final boolean cachePermanently;
 	private long mPriority;
 	private int mResponse;
 	private int mReqWidth;
 	private int mReqHeight;
 	private boolean mFollowCrossRedirects;
+	private RetryPolicy mRetryPolicy = retryPolicy;
+	private int mFailedAttempts;
+	private long mTimeout = requestTimeout;
+	/** When the request started downloading and when it must be done, in uptime millis */
+	private volatile long mStartTime;
+	private volatile long mDeadline;
+	private volatile boolean mTimedOut;
+	/** Whether a thread is running a download for us, which the watchdog can abort */
+	private volatile boolean mDownloading;
+	/** The download in progress, so the watchdog can abort it */
+	private volatile Downloader.Response mActiveResponse;
+	private volatile int mStage = STAGE_CACHE;
+	/** Downloaded by the network stage, waiting to be decoded */
+	private volatile ImageCache.PendingEntry mPendingEntry;
+	/** Whether to send the validators of a stale copy on disk */
+	private boolean mConditional = true;
+	/** Waiting in HELD. Guarded by HELD */
+	private boolean mHeld;
+	/**
+	 * Waiting to decode our download at their own sizes. Not null while
+	 * we're the loader in DOWNLOADS. Guarded by this
+	 */
+	private List<ImageLoader> mFollowers;
+	/** The loader whose download we're waiting for, if any */
+	private volatile ImageLoader mLeader;
 
 	ImageLoader(String imageUrl) {
 		this.imageUrl = imageUrl;
 		this.cachePermanently = false;
+		this.mPreload = true;
+		this.mDownloadOnly = true;
+		this.mSchedulingClass = CLASS_PRELOAD;
+	}
+
+	private ImageLoader(String imageUrl, int reqWidth, int reqHeight) {
+		this.imageUrl = imageUrl;
+		this.cachePermanently = false;
+		this.mPreload = false;
+		this.mDownloadOnly = false;
+		this.mSchedulingClass = CLASS_PREFETCH;
+		this.mReqWidth = reqWidth;
+		this.mReqHeight = reqHeight;
 	}
 
 	private ImageLoader(String imageUrl, ImageView imageView, boolean cachePermanently) {
@@ -314,132 +807,730 @@ public class ImageLoader implements Runnable {
 
 	private ImageLoader(String imageUrl, ImageLoaderHandler handler, boolean cachePermanently) {
 		this.imageUrl = imageUrl;
-		this.handler = handler;
+		this.mHandlers.add(handler);
 		this.cachePermanently = cachePermanently;
+		this.mPreload = false;
+		this.mDownloadOnly = false;
+		this.mSchedulingClass = CLASS_REQUEST;
+	}
+
+	/**
+	 * Identifies the work this loader does: loaders with equal keys decode
+	 * the same thing. Downloads are shared more widely, see
+	 * {@link #getDownloadKey()}.
+	 */
+	String getRequestKey() {
+		return mDownloadOnly ? getDownloadKey() : getDownloadKey() + '|' + mReqWidth + 'x' + mReqHeight;
+	}
+
+	/**
+	 * Identifies the download: loaders with equal keys fetch the same file,
+	 * whatever size they decode it at. Also the request key of a download-only
+	 * loader.
+	 */
+	private String getDownloadKey() {
+		return imageUrl + '|' + cachePermanently + '|' + mFollowCrossRedirects;
+	}
+
+	/**
+	 * Moves the handlers of an equivalent request over to this loader, so
+	 * they are notified when it completes. If the request is more urgent, this
+	 * loader is moved up the queue.
+	 * @return false if this loader already finished and can't take new handlers.
+	 */
+	private boolean attach(ImageLoader other) {
+		synchronized (this) {
+			if (mFinished || mCancelled) {
+				return false;
+			}
+			for (Handler handler : other.mHandlers) {
+				if (handler instanceof ImageLoaderHandler) {
+					((ImageLoaderHandler<?>) handler).mLoader = this;
+				}
+				mHandlers.add(handler);
+			}
+		}
+		// A request for what we prefetch moves us up to its class
+		raisePriority(other.mPriority, other.mSchedulingClass);
+		return true;
+	}
+
+	/**
+	 * Moves the loader up to the given priority, unless it's at least as
+	 * urgent already.
+	 */
+	private void raisePriority(long priority, int schedulingClass) {
+		synchronized (this) {
+			if (schedulingClass > mSchedulingClass
+					|| (schedulingClass == mSchedulingClass && priority >= mPriority)) {
+				return;
+			}
+		}
+		setPriority(priority, schedulingClass);
+	}
+
+	/**
+	 * Moves the loader to its new place in the queue of its stage, or in
+	 * the held list. A loader that is running takes the new priority along
+	 * to its next stage. The download we wait for is moved up with us.
+	 */
+	private void setPriority(final long priority, final int schedulingClass) {
+		Runnable change = new Runnable() {
+			@Override
+			public void run() {
+				synchronized (ImageLoader.this) {
+					mPriority = priority;
+					mSchedulingClass = schedulingClass;
+				}
+			}
+		};
+		ImageLoader leader = mLeader;
+		if (leader != null) {
+			leader.raisePriority(priority, schedulingClass);
+		}
+		synchronized (HELD) {
+			if (mHeld) {
+				change.run();
+				return;
+			}
+		}
+		if (!getStageQueue().update(this, change)) {
+			mNextPriority = change;
+		}
+	}
+
+	/**
+	 * Applies a priority change that came in while we were running. Only
+	 * while we're in no queue, the queue must not see the priority change.
+	 */
+	private void applyNextPriority() {
+		Runnable change = mNextPriority;
+		mNextPriority = null;
+		if (change != null) {
+			change.run();
+		}
+	}
+
+	/**
+	 * @return The most urgent priority of the handlers waiting for us. Other
+	 *         kinds of handlers can't change priority, so they keep ours.
+	 */
+	private synchronized long getHandlerPriority() {
+		long priority = Long.MAX_VALUE;
+		for (Handler handler : mHandlers) {
+			if (!(handler instanceof ImageLoaderHandler)) {
+				return mPriority;
+			}
+			priority = Math.min(priority, ((ImageLoaderHandler<?>) handler).priority);
+		}
+		return mHandlers.isEmpty() ? mPriority : priority;
+	}
+
+	@SuppressWarnings("unchecked")
+	private BoundPriorityBlockingQueue<ImageLoader> getStageQueue() {
+		return (BoundPriorityBlockingQueue<ImageLoader>) (BlockingQueue<?>) getStageExecutor().getQueue();
+	}
+
+	private PausableThreadPoolExecutor getStageExecutor() {
+		return mStage == STAGE_NETWORK ? networkExecutor : executor;
+	}
+
+	/**
+	 * Moves the loader on to the given stage of the pipeline.
+	 */
+	private void handOff(int stage) {
+		applyNextPriority();
+		mStage = stage;
+		getStageExecutor().execute(this);
+	}
+
+	/**
+	 * Hands the loader over to download, unless network requests are held or
+	 * another loader is downloading the image already.
+	 */
+	private void handOffToNetwork() {
+		applyNextPriority();
+		if (followDownload()) {
+			return;
+		}
+		synchronized (HELD) {
+			if (networkHeld) {
+				mStage = STAGE_NETWORK;
+				mHeld = true;
+				HELD.add(this);
+				return;
+			}
+		}
+		handOff(STAGE_NETWORK);
+	}
+
+	/**
+	 * Waits for the loader that's downloading the image for another size,
+	 * if there is one. Otherwise this loader becomes the one others wait for.
+	 * @return true if we wait for another loader's download.
+	 */
+	private boolean followDownload() {
+		synchronized (this) {
+			if (mFollowers == null) {
+				mFollowers = new ArrayList<ImageLoader>();
+			}
+		}
+		String key = getDownloadKey();
+		while (true) {
+			ImageLoader leader = DOWNLOADS.putIfAbsent(key, this);
+			if (leader == null || leader == this) {
+				return false;
+			}
+			if (leader.addFollower(this)) {
+				synchronized (this) {
+					// Nobody could find us, so nobody follows us
+					mFollowers = null;
+				}
+				mStage = STAGE_NETWORK;
+				return true;
+			}
+			// It's done downloading, make room for us
+			DOWNLOADS.remove(key, leader);
+		}
+	}
+
+	/**
+	 * @return false if we're no longer downloading for others.
+	 */
+	private boolean addFollower(ImageLoader follower) {
+		synchronized (this) {
+			if (mFollowers == null) {
+				return false;
+			}
+			follower.mLeader = this;
+			mFollowers.add(follower);
+		}
+		raisePriority(follower.mPriority, follower.mSchedulingClass);
+		return true;
+	}
+
+	private synchronized boolean removeFollower(ImageLoader follower) {
+		return mFollowers != null && mFollowers.remove(follower);
+	}
+
+	private synchronized boolean hasFollowers() {
+		return mFollowers != null && !mFollowers.isEmpty();
+	}
+
+	/**
+	 * Lets the loaders waiting for our download go on, now that it's done,
+	 * failed or won't happen. Does nothing unless we're downloading for others.
+	 *
+	 * @param outcome
+	 *            FOLLOW_DOWNLOADED: they decode entry at their own sizes.
+	 *            FOLLOW_ON_DISK: they decode the copy on disk.
+	 *            FOLLOW_FAILED: they give up too.
+	 *            FOLLOW_ABANDONED: they download the image themselves.
+	 */
+	private void releaseFollowers(int outcome, ImageCache.PendingEntry entry) {
+		List<ImageLoader> followers;
+		synchronized (this) {
+			followers = mFollowers;
+			mFollowers = null;
+		}
+		if (followers == null) {
+			return;
+		}
+		DOWNLOADS.remove(getDownloadKey(), this);
+		if (outcome == FOLLOW_DOWNLOADED) {
+			int decoders = 0;
+			for (ImageLoader follower : followers) {
+				if (!follower.mDownloadOnly) {
+					decoders++;
+				}
+			}
+			// Before any of them can be done with it
+			entry.share(decoders);
+		}
+		for (ImageLoader follower : followers) {
+			follower.mLeader = null;
+			if (outcome == FOLLOW_ABANDONED) {
+				follower.handOffToNetwork();
+				continue;
+			}
+			follower.mResponse = mResponse;
+			if (outcome == FOLLOW_FAILED || follower.mDownloadOnly) {
+				// A preload only wanted it on disk, which we took care of
+				follower.finish(null);
+			} else {
+				follower.mPendingEntry = entry;
+				follower.handOff(STAGE_DECODE);
+			}
+		}
+	}
+
+	/**
+	 * Called when a full queue drops the loader.
+	 */
+	private void onDropped() {
+		List<Handler> handlers;
+		synchronized (this) {
+			mFinished = true;
+			handlers = new ArrayList<Handler>(mHandlers);
+		}
+		// Nobody will run it, so later requests must not attach to it
+		IN_FLIGHT.remove(getRequestKey(), this);
+		REQUESTS.unwatch(this);
+		savePendingEntry();
+		releaseFollowers(FOLLOW_ABANDONED, null);
+		for (Handler handler : handlers) {
+			if (handler != null) {
+				leaveGroup(handler);
+				handler.sendEmptyMessage(HANDLER_MESSAGE_DROPPED);
+			}
+		}
+	}
+
+	/**
+	 * Keeps a download nobody will decode now, so the next request for it
+	 * is a disk hit rather than another download.
+	 */
+	private void savePendingEntry() {
+		final ImageCache.PendingEntry entry = mPendingEntry;
+		mPendingEntry = null;
+		if (entry != null) {
+			// Reads the bounds and moves files, keep that off the caller's thread
+			scheduler.execute(new Runnable() {
+				@Override
+				public void run() {
+					imageCache.commit(entry);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Stops notifying the handler. Cancels this loader once nobody is
+	 * waiting for it anymore.
+	 */
+	private void detach(Handler handler) {
+		synchronized (this) {
+			if (!mHandlers.remove(handler) || !mHandlers.isEmpty() || mPreload || mFinished) {
+				return;
+			}
+		}
+		cancel();
+	}
+
+	/**
+	 * Takes the loader off the queue, or has it stop soon if it's running. A
+	 * download others are waiting for is left to finish.
+	 */
+	private void cancel() {
+		if (hasFollowers()) {
+			cancelIfQueued();
+			return;
+		}
+		synchronized (this) {
+			if (mFinished || mCancelled) {
+				return;
+			}
+			mCancelled = true;
+		}
+		IN_FLIGHT.remove(getRequestKey(), this);
+		ImageLoader leader = mLeader;
+		if (leader != null && leader.removeFollower(this)) {
+			mLeader = null;
+			REQUESTS.unwatch(this);
+			return;
+		}
+		boolean held;
+		synchronized (HELD) {
+			held = mHeld;
+			if (mHeld) {
+				mHeld = false;
+				HELD.remove(this);
+			}
+		}
+		if (held) {
+			REQUESTS.unwatch(this);
+			releaseFollowers(FOLLOW_ABANDONED, null);
+			return;
+		}
+		// Either takes it off the queue, or it's running and will notice mCancelled
+		if (getStageExecutor().remove(this)) {
+			// It won't finish(), and mustn't be mistaken for a stuck request
+			REQUESTS.unwatch(this);
+			savePendingEntry();
+			releaseFollowers(FOLLOW_ABANDONED, null);
+		}
+	}
+
+	/**
+	 * Cancels the loader only if it hasn't started running, so a download
+	 * already under way isn't thrown away.
+	 */
+	private void cancelIfQueued() {
+		synchronized (this) {
+			if (mFinished || mCancelled) {
+				return;
+			}
+		}
+		boolean removed;
+		synchronized (HELD) {
+			removed = mHeld;
+			if (mHeld) {
+				mHeld = false;
+				HELD.remove(this);
+			}
+		}
+		if (!removed && !getStageExecutor().remove(this)) {
+			return;
+		}
+		synchronized (this) {
+			mCancelled = true;
+		}
+		IN_FLIGHT.remove(getRequestKey(), this);
+		REQUESTS.unwatch(this);
+		savePendingEntry();
+		releaseFollowers(FOLLOW_ABANDONED, null);
 	}
 
 	public int getResponse() {
 		return mResponse;
 	}
 
+	/**
+	 * @return The file the image at the given URL is cached in. It starts
+	 *         with a header, use {@link ImageCache#openEntry(File, String)}
+	 *         to read the image data.
+	 */
 	public static File getImageFile(String path) {
 		return imageCache.getImageFile(imageCache.mSecondLevelCacheDir, path);
 	}
 
+	/**
+	 * Runs the loader's current stage: a cache lookup, then if need be a
+	 * download on the network executor, then the decode back on the cache
+	 * executor. That way slow downloads never hold up disk hits. If another
+	 * loader is downloading the image for a different size, we skip the
+	 * download and decode its file once it's there.
+	 */
 	@Override
 	public void run() {
-		REQUESTS.watch(this);
+		if (mStage == STAGE_CACHE && mFailedAttempts == 0) {
+			REQUESTS.watch(this);
+		}
+		if (mStage == STAGE_NETWORK && mDeadline == 0) {
+			// Not before, time spent waiting for the network to come back
+			// or for a fling to end doesn't count
+			mStartTime = SystemClock.uptimeMillis();
+			mDeadline = mStartTime + mTimeout;
+		}
+		Bitmap bitmap = null;
+		boolean handedOff = false;
+		try {
+			switch (mStage) {
+			case STAGE_NETWORK:
+				mDownloading = true;
+				try {
+					handedOff = download();
+				} finally {
+					mDownloading = false;
+				}
+				break;
+			case STAGE_DECODE:
+				// Without an entry we were revalidated, and decode the copy on disk
+				boolean revalidated = mPendingEntry == null;
+				bitmap = decode();
+				if (bitmap == null && revalidated && !mCancelled && mConditional) {
+					// Our revalidated copy went away in the meantime, ask for the whole image
+					mConditional = false;
+					handOffToNetwork();
+					handedOff = true;
+				}
+				break;
+			default:
+				bitmap = mDownloadOnly ? null : load();
+				if (mDownloadOnly && imageCache.isFreshOnDisk(imageUrl)) {
+					break;
+				}
+				if (bitmap == null && !mCancelled && !isLocalFile()) {
+					handOffToNetwork();
+					handedOff = true;
+				}
+				break;
+			}
+		} catch (IOException e) {
+			handedOff = scheduleRetry(e);
+			if (!handedOff && !mCancelled && !mDownloadOnly) {
+				// Couldn't reach the server, a stale image beats none
+				bitmap = imageCache.getBitmapAndAcquire(imageUrl, mReqWidth, mReqHeight, false);
+			}
+		} finally {
+			if (!handedOff) {
+				finish(bitmap);
+			}
+		}
+	}
+
+	private void finish(Bitmap bitmap) {
+		List<Handler> handlers;
+		synchronized (this) {
+			mFinished = true;
+			handlers = new ArrayList<Handler>(mHandlers);
+		}
+		IN_FLIGHT.remove(getRequestKey(), this);
+		REQUESTS.unwatch(this);
+		if (mCancelled) {
+			releaseFollowers(FOLLOW_ABANDONED, null);
+		} else {
+			// Whatever we found or fell back to is on disk, a preload that
+			// gave up may leave them a stale copy or another download
+			releaseFollowers(bitmap != null || mDownloadOnly ? FOLLOW_ON_DISK : FOLLOW_FAILED, null);
+		}
+		for (Handler handler : handlers) {
+			leaveGroup(handler);
+		}
+		if (bitmap != null) {
+			notifyImageLoaded(bitmap, handlers);
+		}
+		imageCache.release(bitmap);
+	}
+
+	/**
+	 * Puts the loader back on the queue once the retry policy's delay has
+	 * passed. It stays in flight meanwhile, so new requests for the image
+	 * attach to it rather than starting over.
+	 * @return false if the retry policy gave up or the loader was cancelled.
+	 */
+	private boolean scheduleRetry(IOException error) {
+		if (mCancelled) {
+			return false;
+		}
+		mFailedAttempts++;
+		long delay = mRetryPolicy.getRetryDelay(mFailedAttempts, error);
+		if (mTimedOut || SystemClock.uptimeMillis() + delay >= mDeadline) {
+			// Wouldn't finish in time anyway
+			delay = -1;
+		}
+		Log.w(ImageLoader.class.getSimpleName(), "download for " + imageUrl + " failed (attempt "
+				+ mFailedAttempts + ")" + (delay >= 0 ? ", retrying in " + delay + "ms" : ""));
+		ImageLoaderMetrics loaderMetrics = metrics;
+		if (loaderMetrics != null) {
+			loaderMetrics.onDownloadFailed(imageUrl, mFailedAttempts, error, delay >= 0);
+		}
+		if (delay < 0) {
+			return false;
+		}
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (mCancelled) {
+					finish(null);
+				} else {
+					// Someone may have fetched it in the meantime
+					handOff(STAGE_CACHE);
+				}
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	private boolean isLocalFile() {
+		return !TextUtils.isEmpty(imageUrl) && imageUrl.startsWith("file");
+	}
+
+	/**
+	 * Looks for the image in the caches, or decodes a local file.
+	 * @return The bitmap, acquired from the cache, or null if it needs to be
+	 *         downloaded.
+	 */
+	private Bitmap load() {
 		Bitmap bitmap = null;
-		if (!TextUtils.isEmpty(imageUrl) && imageUrl.startsWith("file")) {
+		if (isLocalFile()) {
 			Uri uri = Uri.parse(imageUrl);
 			String filename = uri.getPath();
-			BitmapFactory.Options options = new BitmapFactory.Options();
-			if (mReqWidth > 0 && mReqHeight > 0) {
-				options.inSampleSize = calculateInSampleSize(filename, mReqWidth, mReqHeight);
-			}
-			bitmap = BitmapFactory.decodeFile(filename, options);
-			bitmap = applyExifFileAttributes(filename, bitmap);
-			notifyImageLoaded(bitmap);
-			return;
+			bitmap = imageCache.decodeFile(filename, mReqWidth, mReqHeight);
+			return applyExifFileAttributes(filename, bitmap);
+		}
+		if (mCancelled) {
+			return null;
 		}
-		int timesTried = 1;
 		// Check file-based cache on background thread
-		bitmap = imageCache.getBitmap(imageUrl);
-		if (bitmap == null) {
-			while (timesTried <= numAttempts) {
-				InputStream connectionStream = null;
-				try {
-					URLConnection connection = null;
-					URL url = new URL(imageUrl);
-					for (int numRedirects = 0; numRedirects < 3; numRedirects++) {
-						connection = url.openConnection();
-						if (!(connection instanceof HttpURLConnection)) {
-							break;
-						}
-
-						HttpURLConnection httpConnection = (HttpURLConnection) connection;
-						mResponse = httpConnection.getResponseCode();
-						if (mResponse < 300) {
-							// Found a working response code
-							break;
-						}
-						if (!mFollowCrossRedirects) {
-							return;
-						}
-
-						if (mResponse == 301 || mResponse == 302 || mResponse == 307) {
-							// 301 Moved Permanently, 302 Found, 307 Temporary Redirect
-							// Forward 3 redirects across HTTP/HTTPS protocols
-							url = connection.getURL();
-							if (url == null) {
-								return;
-							}
-						} else {
-							// Other response codes are bad, so catch them or this
-							// thread will get stuck retrying a bad URL
-							return;
-						}
-					}
-					connectionStream = connection.getInputStream();
-					if (connectionStream == null) {
-						return; // Nothing to be done ....
-					}
-					bitmap = imageCache.put(imageUrl, connectionStream, this.cachePermanently);
-					break;
-				} catch (IOException e) {
-					Log.w(ImageLoader.class.getSimpleName(), "download for " + imageUrl
-							+ " failed (attempt " + timesTried + ")");
-					try {
-						Thread.sleep(2000);
-					} catch (InterruptedException e1) {
-						// Oh well, pass
-					}
-					timesTried++;
-				} finally {
-					if (connectionStream != null) {
-						try {
-							connectionStream.close();
-						} catch (IOException e) {
-							// Nothing to be done
-						}
+		bitmap = imageCache.getBitmapAndAcquire(imageUrl, mReqWidth, mReqHeight, true);
+		if (bitmap == null && networkExecutor.isPaused()) {
+			// We're offline, a stale image beats waiting for the network
+			bitmap = imageCache.getBitmapAndAcquire(imageUrl, mReqWidth, mReqHeight, false);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Downloads the image to disk, or revalidates the stale copy we have,
+	 * and hands the loader over to be decoded.
+	 * @return true if it was handed off, false if there's nothing to decode.
+	 * @throws IOException if the download failed and may be retried.
+	 */
+	private boolean download() throws IOException {
+		if (mCancelled) {
+			return false;
+		}
+		// A stale copy on disk we can ask the server about, rather than
+		// download it all over again
+		CacheMetadata cached = mConditional ? imageCache.getMetadata(imageUrl) : null;
+		if (cached != null && !cached.hasValidators()) {
+			cached = null;
+		}
+		Downloader.Response response = download(cached);
+		try {
+			checkTimedOut();
+			mResponse = response.getStatus();
+			if (mResponse == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+				if (imageCache.revalidate(imageUrl,
+						CacheMetadata.fromResponse(response, System.currentTimeMillis()))) {
+					releaseFollowers(FOLLOW_ON_DISK, null);
+					if (mDownloadOnly) {
+						return false;
 					}
+					handOff(STAGE_DECODE);
+					return true;
 				}
+				// Our copy went away in the meantime, ask for the whole image
+				response.close();
+				response = null;
+				response = download(null);
+				checkTimedOut();
+				mResponse = response.getStatus();
+			}
+			if (mResponse >= 300) {
+				// Other response codes are bad, so catch them or this
+				// thread will get stuck retrying a bad URL
+				return false;
+			}
+			if (mCancelled) {
+				return false;
+			}
+			InputStream connectionStream = response.getBody();
+			if (connectionStream == null) {
+				return false; // Nothing to be done ....
+			}
+			connectionStream = new CancellableInputStream(connectionStream);
+			ImageCache.PendingEntry entry = imageCache.write(imageUrl, connectionStream, this.cachePermanently,
+					response.getContentLength(), CacheMetadata.fromResponse(response, System.currentTimeMillis()));
+			// They decode it from the same temp file, the last one stores it
+			releaseFollowers(FOLLOW_DOWNLOADED, entry);
+			if (mDownloadOnly) {
+				// Nobody is looking at it yet, leave the decoding for later
+				imageCache.commit(entry);
+				return false;
+			}
+			mPendingEntry = entry;
+			handOff(STAGE_DECODE);
+			return true;
+		} finally {
+			mActiveResponse = null;
+			if (response != null) {
+				response.close();
 			}
 		}
+	}
 
-		if (bitmap != null && this.handler != null) {
-			notifyImageLoaded(bitmap);
+	/**
+	 * Decodes what the network stage left us.
+	 * @return The bitmap, acquired from the cache, or null.
+	 */
+	private Bitmap decode() {
+		ImageCache.PendingEntry entry = mPendingEntry;
+		mPendingEntry = null;
+		if (mCancelled) {
+			if (entry != null) {
+				imageCache.commit(entry);
+			}
+			return null;
+		}
+		if (entry != null) {
+			return imageCache.commitAndAcquire(entry, mReqWidth, mReqHeight);
+		}
+		// Revalidated, the copy on disk is good
+		return imageCache.getBitmapAndAcquire(imageUrl, mReqWidth, mReqHeight, false);
+	}
+
+	/**
+	 * @param cached Validators to make the request conditional on, or null.
+	 */
+	private Downloader.Response download(CacheMetadata cached) throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		if (cached != null) {
+			cached.addValidators(headers);
+		}
+		Downloader.Response response = downloader.download(imageUrl, headers, mFollowCrossRedirects);
+		mActiveResponse = response;
+		return response;
+	}
+
+	/**
+	 * Fails the attempt if the watchdog aborted it, in case that happened
+	 * before there was a download for it to abort.
+	 */
+	private void checkTimedOut() throws InterruptedIOException {
+		if (mTimedOut) {
+			throw new InterruptedIOException("Request for " + imageUrl + " timed out");
+		}
+	}
+
+	/**
+	 * Aborts downloads that have been going for longer than their timeout.
+	 * Loaders waiting in a queue are left alone, a retry past the deadline
+	 * isn't scheduled in the first place.
+	 */
+	private static final Runnable WATCHDOG = new Runnable() {
+		@Override
+		public void run() {
+			long now = SystemClock.uptimeMillis();
+			for (ImageLoader loader : REQUESTS.getSnapShotAndClean()) {
+				if (loader.mDownloading && !loader.mTimedOut && now > loader.mDeadline) {
+					loader.abort(now);
+				}
+			}
+		}
+	};
+
+	private void abort(long now) {
+		mTimedOut = true;
+		Downloader.Response response = mActiveResponse;
+		if (response != null) {
+			response.abort();
+		}
+		Log.w(ImageLoader.class.getSimpleName(), "request for " + imageUrl + " timed out after "
+				+ (now - mStartTime) + "ms");
+		ImageLoaderMetrics loaderMetrics = metrics;
+		if (loaderMetrics != null) {
+			loaderMetrics.onRequestTimedOut(imageUrl, now - mStartTime);
 		}
 	}
 
 	public void notifyImageLoaded(Bitmap bitmap) {
-		Message message = new Message();
-		message.what = HANDLER_MESSAGE_ID;
-		Bundle data = new Bundle();
-		data.putParcelable(BITMAP_EXTRA, bitmap);
-		message.setData(data);
-		handler.sendMessage(message);
-	}
-
-	private static int calculateInSampleSize(String filename, int reqWidth, int reqHeight) {
-		BitmapFactory.Options options = new BitmapFactory.Options();
-		options.inJustDecodeBounds = true;
-		BitmapFactory.decodeFile(filename, options);
-		// Raw height and width of image
-		final int height = options.outHeight;
-		final int width = options.outWidth;
-		int inSampleSize = 1;
-		if (height > reqHeight || width > reqWidth) {
-			// Calculate ratios of height and width to requested height and
-			// width
-			final int heightRatio = Math.round((float) height / (float) reqHeight);
-			final int widthRatio = Math.round((float) width / (float) reqWidth);
-			// Choose the smallest ratio as inSampleSize value, this will
-			// guarantee a final image with both dimensions larger than or equal
-			// to the requested height and width.
-			inSampleSize = heightRatio < widthRatio ? heightRatio : widthRatio;
-		}
-		return inSampleSize;
+		List<Handler> handlers;
+		synchronized (this) {
+			handlers = new ArrayList<Handler>(mHandlers);
+		}
+		notifyImageLoaded(bitmap, handlers);
+	}
+
+	private static void notifyImageLoaded(Bitmap bitmap, List<Handler> handlers) {
+		for (Handler handler : handlers) {
+			if (handler == null) {
+				continue;
+			}
+			if (handler instanceof WebImageLoaderHandler) {
+				// Released by the handler once the bitmap is on screen
+				imageCache.acquire(bitmap);
+			} else {
+				imageCache.markEscaped(bitmap);
+			}
+			Message message = new Message();
+			message.what = HANDLER_MESSAGE_ID;
+			Bundle data = new Bundle();
+			data.putParcelable(BITMAP_EXTRA, bitmap);
+			message.setData(data);
+			handler.sendMessage(message);
+		}
 	}
 
 	private Bitmap applyExifFileAttributes(String imagePath, Bitmap bitmap) {
@@ -465,28 +1556,55 @@ public class ImageLoader implements Runnable {
 			case ExifInterface.ORIENTATION_ROTATE_90:
 				// and then some
 				rotate += 90;
-				if (bitmap.isMutable()) {
-					// Rotate the image in place if possible
-					Canvas canvas = new Canvas(bitmap);
-					canvas.rotate(rotate);
-				} else {
-					// Otherwise decode a copy that is rotated
-					Matrix matrix = new Matrix();
-					matrix.postRotate(rotate);
-					Bitmap newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
-							bitmap.getHeight(), matrix, true);
-					bitmap.recycle();
-					bitmap = newBitmap;
-				}
+				// Decode a copy that is rotated. Rotating a Canvas over a mutable
+				// bitmap only affects what is drawn afterwards, not its pixels.
+				Matrix matrix = new Matrix();
+				matrix.postRotate(rotate);
+				Bitmap newBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(),
+						bitmap.getHeight(), matrix, true);
+				bitmap.recycle();
+				bitmap = newBitmap;
 			default:
 				break;
 		}
 		return bitmap;
 	}
 
+	/**
+	 * Aborts the download mid-stream once the loader is cancelled or times out.
+	 */
+	private class CancellableInputStream extends FilterInputStream {
+
+		CancellableInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkCancelled();
+			return super.read();
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkCancelled();
+			return super.read(buffer, offset, count);
+		}
+
+		private void checkCancelled() throws InterruptedIOException {
+			if (mCancelled) {
+				throw new InterruptedIOException("Download of " + imageUrl + " was cancelled");
+			}
+			checkTimedOut();
+		}
+	}
+
 	/**
 	 * A Pausable Threadpool Executor taken from the javadocs for ThreadPoolExecutor.
-	 * We can use this to turn on/off processing of image tasks without destroying the threadpool
+	 * We can use this to turn on/off processing of image tasks without destroying the threadpool.
+	 * When its queue is a {@link BoundPriorityBlockingQueue}, paused threads wait on the queue
+	 * rather than on a task they already took, so everything resumes in priority order and
+	 * tasks queued meanwhile can still be reprioritized or cancelled.
 	 * @author greg
 	 * @see http://download.oracle.com/javase/1.5.0/docs/api/java/util/concurrent/ThreadPoolExecutor.html
 	 *
@@ -499,7 +1617,7 @@ public class ImageLoader implements Runnable {
 		@SuppressWarnings("unchecked")
 		public PausableThreadPoolExecutor(int corePoolSize,
 				int maximumPoolSize, long keepAliveTime, TimeUnit unit,
-				PriorityBlockingQueue<? extends Runnable> workQueue) {
+				BlockingQueue<? extends Runnable> workQueue) {
 			super(corePoolSize, maximumPoolSize, keepAliveTime, unit, (BlockingQueue<Runnable>)workQueue);
 			mLock = new ReentrantLock();
 			mPauseCondition = mLock.newCondition();
@@ -507,6 +1625,13 @@ public class ImageLoader implements Runnable {
 
 
 		public void pause() {
+			if (getQueue() instanceof BoundPriorityBlockingQueue) {
+				// New threads would run their first task without asking the
+				// queue, so have them all waiting on it already
+				prestartAllCoreThreads();
+				((BoundPriorityBlockingQueue<?>) getQueue()).setPaused(true);
+				return;
+			}
 			mLock.lock();
 			try {
 				isPaused = true;
@@ -516,6 +1641,10 @@ public class ImageLoader implements Runnable {
 		}
 
 		public void resume() {
+			if (getQueue() instanceof BoundPriorityBlockingQueue) {
+				((BoundPriorityBlockingQueue<?>) getQueue()).setPaused(false);
+				return;
+			}
 			mLock.lock();
 			try {
 				isPaused = false;
@@ -524,6 +1653,19 @@ public class ImageLoader implements Runnable {
 				mLock.unlock();
 			}
 		}
+
+		public boolean isPaused() {
+			if (getQueue() instanceof BoundPriorityBlockingQueue) {
+				return ((BoundPriorityBlockingQueue<?>) getQueue()).isPaused();
+			}
+			mLock.lock();
+			try {
+				return isPaused;
+			} finally {
+				mLock.unlock();
+			}
+		}
+
 		@Override
 		protected void beforeExecute(Thread t, Runnable r) {
 			super.beforeExecute(t, r);
@@ -542,40 +1684,4 @@ public class ImageLoader implements Runnable {
 			}
 		}
 	}
-
-	/**
-	 * A PriorityBlockingQueue with a max length. When this length is reached, the contents are drained
-	 * to half its size to make sure we don't grow out of control. Lower priority tasks will be removed.
-	 * @author greg
-	 *
-	 * @param <T> The type of the contents this will hold
-	 */
-	@SuppressWarnings("serial")
-	private static final class BoundPriorityBlockingQueue<T> extends PriorityBlockingQueue<T> {
-		private final int mMaxSize;
-
-		public BoundPriorityBlockingQueue(int maxSize, int initialCapacity, Comparator<? super T> comparator) {
-			super(initialCapacity, comparator);
-			mMaxSize = maxSize;
-		}
-
-		/**
-		 * Overriden to allow for size check on insert
-		 */
-		@Override
-		public boolean offer(T e) {
-			boolean rtVal = super.offer(e);
-			if (size() > mMaxSize) {
-				LinkedList<T> copy = new LinkedList<T>();
-				// Block and take all next in line to be executed
-				drainTo(copy, mMaxSize / 2);
-				// Clear the rest
-				super.clear();
-				// continue
-				super.addAll(copy);
-			}
-			return rtVal;
-		};
-
-	}
 }
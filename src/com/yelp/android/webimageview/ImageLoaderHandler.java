@@ -34,6 +34,17 @@ public class ImageLoaderHandler<ImageView> extends Handler {
 
     private final WeakReference<ImageView> mWeakImageView;
     protected long priority;
+    /** How to retry a failed download, or null for {@link ImageLoader#setRetryPolicy(RetryPolicy) the default} */
+    protected RetryPolicy retryPolicy;
+    /** How long the request may take in all, or 0 for {@link ImageLoader#setRequestTimeout(long) the default} */
+    protected long timeout;
+    /**
+     * The group the request belongs to, see {@link ImageLoader#pauseGroup(Object)}. Weak, as
+     * the group keeps us until it resumes or is cancelled and mustn't keep itself alive.
+     */
+    private WeakReference<Object> mGroup;
+    /** The loader that will notify this handler, used for cancelling */
+    volatile ImageLoader mLoader;
 
     public ImageLoaderHandler(ImageView imageView) {
         mWeakImageView = new WeakReference<ImageView>(imageView);
@@ -56,4 +67,20 @@ public class ImageLoaderHandler<ImageView> extends Handler {
         return mWeakImageView.get();
     }
 
+    /**
+     * Puts the request in a group, see {@link ImageLoader#pauseGroup(Object)}. Only the group
+     * is held on to weakly, a handler that references it keeps it alive while it's paused.
+     * @param group the tag of the group, or null for none
+     */
+    public void setGroup(Object group) {
+        mGroup = group != null ? new WeakReference<Object>(group) : null;
+    }
+
+    /**
+     * @return The tag of the group the request belongs to, or null.
+     */
+    public Object getGroup() {
+        return mGroup != null ? mGroup.get() : null;
+    }
+
 }
@@ -0,0 +1,39 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.io.IOException;
+
+/**
+ * Hears about requests that went wrong, for logging or analytics. Pass one to
+ * {@link ImageLoader#setMetrics(ImageLoaderMetrics)}. Methods are called on
+ * background threads and should return quickly.
+ */
+public interface ImageLoaderMetrics {
+
+	/**
+	 * A download attempt failed.
+	 * @param attempt Which attempt failed, starting at 1.
+	 * @param willRetry Whether the request will be tried again.
+	 */
+	void onDownloadFailed(String imageUrl, int attempt, IOException error, boolean willRetry);
+
+	/**
+	 * A request ran past its deadline and was aborted by the watchdog.
+	 * @param elapsedMillis How long ago the request started running.
+	 */
+	void onRequestTimedOut(String imageUrl, long elapsedMillis);
+}
@@ -21,10 +21,49 @@ import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Keeps track of objects without keeping them alive, for debugging and
+ * monitoring. Safe to use from several threads.
+ *
+ * @param <T> The type of object watched
+ */
 public class ReferenceWatcher<T> {
 
+	/**
+	 * Equal to another reference to the same object, by identity, so a
+	 * watched object is found without a scan and without holding on to it.
+	 * Once cleared it is only equal to itself, like the keys of a
+	 * WeakHashMap.
+	 */
+	private static class IdentityReference<T> extends SoftReference<T> {
+		private final int mHash;
+
+		IdentityReference(T referent, ReferenceQueue<? super T> queue) {
+			super(referent, queue);
+			mHash = System.identityHashCode(referent);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o == this) {
+				return true;
+			}
+			if (!(o instanceof IdentityReference)) {
+				return false;
+			}
+			Object referent = get();
+			return referent != null && referent == ((IdentityReference<?>) o).get();
+		}
+	}
+
 	private final ReferenceQueue<? super T> mQueue;
-	private HashSet<Reference<T>> mRefs;
+	/** Guarded by this */
+	private final HashSet<Reference<T>> mRefs;
 	private final int mThreshold;
 
 	private final AtomicInteger mCount;
@@ -42,34 +81,41 @@ public class ReferenceWatcher<T> {
 	}
 
 	public void watch(T ref) {
-		mRefs.add(new SoftReference<T>(ref, mQueue));
+		synchronized (this) {
+			mRefs.add(new IdentityReference<T>(ref, mQueue));
+		}
 		if (mCount.incrementAndGet() >= mThreshold) {
 			clean();
 		}
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
-	private final void clean() {
-		Reference ref = null;
-		while((ref = mQueue.poll()) != null) {
-			T value = (T)ref.get();
-			if (value != null) {
-				mRefs.remove(value);
-			}
+	/**
+	 * Stops watching ref, it won't show up in snapshots anymore.
+	 */
+	public synchronized void unwatch(T ref) {
+		mRefs.remove(new IdentityReference<T>(ref, null));
+	}
+
+	private synchronized void clean() {
+		Reference<?> ref;
+		while ((ref = mQueue.poll()) != null) {
+			// The referent is gone by now, the reference itself is what we hold
+			mRefs.remove(ref);
 		}
+		mCount.set(mRefs.size());
 	}
 
 	public Set<T> getSnapShotAndClean() {
 		clean();
 		HashSet<T> values = new HashSet<T>();
-		for (Reference<T> tempRef : mRefs) {
-			T value = tempRef.get();
-			if(value != null) {
-				values.add(value);
+		synchronized (this) {
+			for (Reference<T> tempRef : mRefs) {
+				T value = tempRef.get();
+				if(value != null) {
+					values.add(value);
+				}
 			}
 		}
-		mCount.set(mRefs.size());
-
 		return values;
 	}
 }
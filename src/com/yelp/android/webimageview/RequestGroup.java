@@ -0,0 +1,79 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The outstanding requests of one group, see
+ * {@link ImageLoader#pauseGroup(Object)}. Each request is kept with a way to
+ * start it over, for when the group resumes.
+ */
+class RequestGroup {
+
+	/** By handler, in the order they were made. Guarded by this */
+	private final LinkedHashMap<ImageLoaderHandler<?>, Runnable> mRequests =
+			new LinkedHashMap<ImageLoaderHandler<?>, Runnable>();
+	/** Guarded by this */
+	private boolean mPaused;
+
+	/**
+	 * Adds a request that is about to start.
+	 * @param restart Starts the request over.
+	 * @return false if the group is paused, in which case the request should
+	 *         wait for the group to resume.
+	 */
+	synchronized boolean add(ImageLoaderHandler<?> handler, Runnable restart) {
+		mRequests.put(handler, restart);
+		return !mPaused;
+	}
+
+	/**
+	 * Forgets a request that completed or was cancelled.
+	 */
+	synchronized void remove(ImageLoaderHandler<?> handler) {
+		mRequests.remove(handler);
+	}
+
+	/**
+	 * @return The requests to stop, which stay in the group to be restarted.
+	 */
+	synchronized List<ImageLoaderHandler<?>> pause() {
+		mPaused = true;
+		return new ArrayList<ImageLoaderHandler<?>>(mRequests.keySet());
+	}
+
+	/**
+	 * @return The requests to start over. They are added again as they start.
+	 */
+	synchronized List<Runnable> resume() {
+		mPaused = false;
+		List<Runnable> restarts = new ArrayList<Runnable>(mRequests.values());
+		mRequests.clear();
+		return restarts;
+	}
+
+	/**
+	 * @return The requests to cancel, which are removed from the group.
+	 */
+	synchronized List<ImageLoaderHandler<?>> clear() {
+		List<ImageLoaderHandler<?>> handlers = new ArrayList<ImageLoaderHandler<?>>(mRequests.keySet());
+		mRequests.clear();
+		return handlers;
+	}
+}
@@ -0,0 +1,93 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Decides whether and when {@link ImageLoader} tries a failed download again.
+ * The delay doubles with every failed attempt, up to a maximum, and is
+ * randomized so that requests which failed together don't all retry at the
+ * same moment. The loader thread is free to serve other requests while a
+ * retry waits.
+ * <p>
+ * Set one for every request with {@link ImageLoader#setRetryPolicy(RetryPolicy)},
+ * or for a single request through {@link ImageLoaderHandler#retryPolicy}.
+ * </p>
+ */
+public class RetryPolicy {
+
+	/** Gives up after the first failure */
+	public static final RetryPolicy NO_RETRY = new RetryPolicy(1, 0, 0);
+
+	private static final Random RANDOM = new Random();
+
+	private final int mMaxAttempts;
+	private final long mInitialDelay;
+	private final long mMaxDelay;
+
+	/**
+	 * @param maxAttempts
+	 *            How many times a download is tried in all.
+	 * @param initialDelayMillis
+	 *            About how long to wait after the first failure.
+	 * @param maxDelayMillis
+	 *            The longest to wait between attempts.
+	 */
+	public RetryPolicy(int maxAttempts, long initialDelayMillis, long maxDelayMillis) {
+		mMaxAttempts = maxAttempts;
+		mInitialDelay = initialDelayMillis;
+		mMaxDelay = maxDelayMillis;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	public long getInitialDelay() {
+		return mInitialDelay;
+	}
+
+	public long getMaxDelay() {
+		return mMaxDelay;
+	}
+
+	/**
+	 * @param failedAttempts
+	 *            How many attempts failed so far, at least 1.
+	 * @param error
+	 *            Why the last attempt failed.
+	 * @return How many milliseconds to wait before trying again, or -1 to
+	 *         give up.
+	 */
+	public long getRetryDelay(int failedAttempts, IOException error) {
+		if (failedAttempts >= mMaxAttempts) {
+			return -1;
+		}
+		long delay = mInitialDelay;
+		for (int i = 1; i < failedAttempts && delay < mMaxDelay; i++) {
+			delay *= 2;
+		}
+		delay = Math.min(delay, mMaxDelay);
+		// Somewhere in the upper half, so retries spread out but still back off
+		long jitter;
+		synchronized (RANDOM) {
+			jitter = (long) (RANDOM.nextDouble() * (delay / 2));
+		}
+		return delay - jitter;
+	}
+}
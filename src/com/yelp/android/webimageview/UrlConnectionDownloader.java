@@ -0,0 +1,184 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+/**
+ * Downloads over {@link URLConnection}, the platform's HTTP stack.
+ * HttpURLConnection follows redirects within a protocol by itself, this
+ * follows the ones between HTTP and HTTPS if asked to.
+ */
+public class UrlConnectionDownloader implements Downloader {
+
+	private static final int MAX_REDIRECTS = 3;
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+	public static final int DEFAULT_READ_TIMEOUT = 20 * 1000;
+
+	private final boolean mReuseConnections;
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+
+	/**
+	 * Reuses connections where the platform does so reliably, which is Froyo
+	 * and later.
+	 */
+	public UrlConnectionDownloader() {
+		this(Integer.valueOf(Build.VERSION.SDK) >= Build.VERSION_CODES.FROYO);
+	}
+
+	/**
+	 * @param reuseConnections
+	 *            If true, connections are kept alive and returned to the
+	 *            platform's pool once a download is done, otherwise each
+	 *            download gets a connection of its own. Before Froyo, reused
+	 *            connections could hand out corrupt responses.
+	 */
+	public UrlConnectionDownloader(boolean reuseConnections) {
+		this(reuseConnections, DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+	}
+
+	/**
+	 * @param connectTimeoutMillis
+	 *            How long to wait for a connection to be established.
+	 * @param readTimeoutMillis
+	 *            How long to wait for each read of the response, so a
+	 *            stalled server can't hold a loader thread forever.
+	 */
+	public UrlConnectionDownloader(boolean reuseConnections, int connectTimeoutMillis, int readTimeoutMillis) {
+		mReuseConnections = reuseConnections;
+		mConnectTimeout = connectTimeoutMillis;
+		mReadTimeout = readTimeoutMillis;
+	}
+
+	@Override
+	public Response download(String url, Map<String, String> headers, boolean followCrossRedirects)
+			throws IOException {
+		URL location = new URL(url);
+		URLConnection connection = null;
+		int status = -1;
+		for (int numRedirects = 0; numRedirects <= MAX_REDIRECTS; numRedirects++) {
+			connection = location.openConnection();
+			connection.setConnectTimeout(mConnectTimeout);
+			connection.setReadTimeout(mReadTimeout);
+			if (!(connection instanceof HttpURLConnection)) {
+				break;
+			}
+			for (Map.Entry<String, String> header : headers.entrySet()) {
+				connection.setRequestProperty(header.getKey(), header.getValue());
+			}
+			if (!mReuseConnections) {
+				connection.setRequestProperty("Connection", "close");
+			}
+			HttpURLConnection httpConnection = (HttpURLConnection) connection;
+			status = httpConnection.getResponseCode();
+			boolean redirect = status == HttpURLConnection.HTTP_MOVED_PERM
+					|| status == HttpURLConnection.HTTP_MOVED_TEMP || status == 307;
+			if (!redirect || !followCrossRedirects || numRedirects == MAX_REDIRECTS) {
+				break;
+			}
+			// 301 Moved Permanently, 302 Found, 307 Temporary Redirect across
+			// HTTP/HTTPS, which HttpURLConnection won't follow by itself
+			String target = connection.getHeaderField("Location");
+			if (target == null) {
+				break;
+			}
+			location = new URL(location, target);
+			close(connection);
+		}
+		return new UrlConnectionResponse(connection, status);
+	}
+
+	private void close(URLConnection connection) {
+		try {
+			// An error or redirect response was never read, release its body
+			InputStream body = connection instanceof HttpURLConnection
+					? ((HttpURLConnection) connection).getErrorStream() : null;
+			if (body != null) {
+				body.close();
+			}
+		} catch (IOException e) {
+			// Nothing to be done
+		}
+		if (!mReuseConnections && connection instanceof HttpURLConnection) {
+			((HttpURLConnection) connection).disconnect();
+		}
+	}
+
+	private class UrlConnectionResponse implements Response {
+
+		private final URLConnection mConnection;
+		private final int mStatus;
+		private InputStream mBody;
+
+		UrlConnectionResponse(URLConnection connection, int status) {
+			mConnection = connection;
+			mStatus = status;
+		}
+
+		@Override
+		public int getStatus() {
+			return mStatus;
+		}
+
+		@Override
+		public String getHeader(String name) {
+			return mConnection.getHeaderField(name);
+		}
+
+		@Override
+		public long getContentLength() {
+			return mConnection.getContentLength();
+		}
+
+		@Override
+		public InputStream getBody() throws IOException {
+			if (mBody == null) {
+				mBody = mConnection.getInputStream();
+			}
+			return mBody;
+		}
+
+		@Override
+		public void close() {
+			if (mBody != null) {
+				try {
+					// Hands the connection back to the pool once the body is used up
+					mBody.close();
+				} catch (IOException e) {
+					// Nothing to be done
+				}
+			}
+			UrlConnectionDownloader.this.close(mConnection);
+		}
+
+		@Override
+		public void abort() {
+			if (mConnection instanceof HttpURLConnection) {
+				// Closes the socket under a blocked read
+				((HttpURLConnection) mConnection).disconnect();
+			}
+		}
+	}
+}
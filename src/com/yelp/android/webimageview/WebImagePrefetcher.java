@@ -0,0 +1,186 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import android.os.SystemClock;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Decodes the images of the rows about to scroll on screen, so they show as
+ * soon as the rows do. It keeps a window of rows ahead of the visible ones
+ * in the direction of scrolling, which grows with the scrolling speed, and
+ * cancels the prefetches of rows that drop out of it.
+ * <p>
+ * Set it with {@link AbsListView#setOnScrollListener(OnScrollListener)},
+ * passing along any listener of your own such as a
+ * {@link WebImageScrollListener}. The sizes must be the ones the rows'
+ * {@link WebImageView}s will ask for, or the prefetched images won't be
+ * used.
+ * </p>
+ */
+public class WebImagePrefetcher implements OnScrollListener {
+
+	/**
+	 * Tells the prefetcher what the rows will show, typically implemented by
+	 * the adapter.
+	 */
+	public interface ImageSource {
+
+		/**
+		 * @return The URL of the image the item at position shows, or null
+		 *         if it has none.
+		 */
+		String getImageUrl(int position);
+
+		/**
+		 * @return The width the image will be requested at.
+		 */
+		int getImageWidth(int position);
+
+		/**
+		 * @return The height the image will be requested at.
+		 */
+		int getImageHeight(int position);
+	}
+
+	/** How far ahead to look at the current scrolling speed */
+	private static final long LOOKAHEAD_MILLIS = 500;
+
+	private static class Prefetch {
+		final String url;
+		final int width;
+		final int height;
+
+		Prefetch(String url, int width, int height) {
+			this.url = url;
+			this.width = width;
+			this.height = height;
+		}
+	}
+
+	private final ImageSource mSource;
+	private final int mWindow;
+	private final int mMaxWindow;
+	private final OnScrollListener mDelegate;
+	/** What we prefetch by position */
+	private final Map<Integer, Prefetch> mPrefetches = new HashMap<Integer, Prefetch>();
+	private int mFirstVisible = -1;
+	private int mVisibleCount;
+	private long mLastScrollTime;
+	private boolean mScrollingUp;
+
+	/**
+	 * @param window
+	 *            How many rows to prefetch ahead when scrolling slowly.
+	 * @param maxWindow
+	 *            How many rows to prefetch ahead at most, however fast the
+	 *            list scrolls.
+	 * @param delegate
+	 *            Also notified of scrolling, or null.
+	 */
+	public WebImagePrefetcher(ImageSource source, int window, int maxWindow, OnScrollListener delegate) {
+		mSource = source;
+		mWindow = window;
+		mMaxWindow = Math.max(window, maxWindow);
+		mDelegate = delegate;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		if (mDelegate != null) {
+			mDelegate.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (firstVisibleItem != mFirstVisible || visibleItemCount != mVisibleCount) {
+			long now = SystemClock.uptimeMillis();
+			int window = mWindow;
+			if (mFirstVisible >= 0 && firstVisibleItem != mFirstVisible) {
+				int moved = Math.abs(firstVisibleItem - mFirstVisible);
+				mScrollingUp = firstVisibleItem < mFirstVisible;
+				// Rows that will come on screen within the lookahead at this speed
+				long elapsed = Math.max(1, now - mLastScrollTime);
+				window += (int) Math.min(mMaxWindow, moved * LOOKAHEAD_MILLIS / elapsed);
+			}
+			mFirstVisible = firstVisibleItem;
+			mVisibleCount = visibleItemCount;
+			mLastScrollTime = now;
+			update(Math.min(window, mMaxWindow), totalItemCount);
+		}
+		if (mDelegate != null) {
+			mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+
+	/**
+	 * Prefetches the window rows ahead of the visible ones, nearest first,
+	 * and cancels the rest.
+	 */
+	private void update(int window, int totalItemCount) {
+		int start;
+		int end;
+		if (mScrollingUp) {
+			start = Math.max(0, mFirstVisible - window);
+			end = mFirstVisible;
+		} else {
+			start = mFirstVisible + mVisibleCount;
+			end = Math.min(totalItemCount, start + window);
+		}
+		Iterator<Map.Entry<Integer, Prefetch>> entries = mPrefetches.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Integer, Prefetch> entry = entries.next();
+			int position = entry.getKey();
+			if (position < start || position >= end) {
+				Prefetch prefetch = entry.getValue();
+				// Cancelling what came on screen is harmless, its request took it over
+				ImageLoader.cancelPrefetch(prefetch.url, prefetch.width, prefetch.height);
+				entries.remove();
+			}
+		}
+		for (int position = start; position < end; position++) {
+			if (mPrefetches.containsKey(position)) {
+				continue;
+			}
+			String url = mSource.getImageUrl(position);
+			if (url == null) {
+				continue;
+			}
+			Prefetch prefetch = new Prefetch(url, mSource.getImageWidth(position), mSource.getImageHeight(position));
+			mPrefetches.put(position, prefetch);
+			int distance = mScrollingUp ? end - position : position - start;
+			ImageLoader.prefetch(prefetch.url, prefetch.width, prefetch.height, distance);
+		}
+	}
+
+	/**
+	 * Cancels all prefetches, for instance when the adapter's data changes.
+	 */
+	public void clear() {
+		for (Prefetch prefetch : mPrefetches.values()) {
+			ImageLoader.cancelPrefetch(prefetch.url, prefetch.width, prefetch.height);
+		}
+		mPrefetches.clear();
+		mFirstVisible = -1;
+		mVisibleCount = 0;
+	}
+}
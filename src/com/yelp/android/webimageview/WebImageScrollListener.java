@@ -0,0 +1,100 @@
+/* Copyright (c) 2012 Yelp Inc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.yelp.android.webimageview;
+
+import com.yelp.android.webimageview.WebImageView.WebImageLoaderHandler;
+
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds off downloads while a list of {@link WebImageView}s is flinging, as
+ * most of the rows will be gone again before their images arrive. Images in
+ * the caches still show right away. Once the list settles or is touched,
+ * the downloads for the images on screen start, top to bottom, followed by
+ * any other held downloads. Those for rows that flew by and were recycled
+ * for another image are dropped.
+ * <p>
+ * Set it with {@link AbsListView#setOnScrollListener(OnScrollListener)},
+ * passing along any listener of your own. Holding is global, so use it for
+ * one list at a time.
+ * </p>
+ */
+public class WebImageScrollListener implements OnScrollListener {
+
+	private final OnScrollListener mDelegate;
+	private boolean mFlinging;
+
+	public WebImageScrollListener() {
+		this(null);
+	}
+
+	/**
+	 * @param delegate
+	 *            Also notified of scrolling, or null.
+	 */
+	public WebImageScrollListener(OnScrollListener delegate) {
+		mDelegate = delegate;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		if (scrollState == SCROLL_STATE_FLING) {
+			if (!mFlinging) {
+				mFlinging = true;
+				ImageLoader.holdNetworkRequests();
+			}
+		} else if (mFlinging) {
+			mFlinging = false;
+			List<WebImageLoaderHandler> visible = new ArrayList<WebImageLoaderHandler>();
+			findRequests(view, visible);
+			ImageLoader.releaseNetworkRequests(visible);
+		}
+		if (mDelegate != null) {
+			mDelegate.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+		if (mDelegate != null) {
+			mDelegate.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+
+	/**
+	 * Adds the pending requests of the WebImageViews under parent, in layout
+	 * order.
+	 */
+	static void findRequests(ViewGroup parent, List<WebImageLoaderHandler> requests) {
+		for (int i = 0; i < parent.getChildCount(); i++) {
+			View child = parent.getChildAt(i);
+			if (child instanceof WebImageView) {
+				WebImageLoaderHandler request = ((WebImageView) child).getRequest();
+				if (request != null) {
+					requests.add(request);
+				}
+			} else if (child instanceof ViewGroup) {
+				findRequests((ViewGroup) child, requests);
+			}
+		}
+	}
+}
@@ -19,12 +19,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Message;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.AttributeSet;
+import android.view.View;
+import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 
 import java.lang.ref.WeakReference;
@@ -65,6 +68,18 @@ public class WebImageView extends ImageView {
 	private int mReqWidth;
 	private int mReqHeight;
 	private boolean mFollowCrossRedirects;
+	/** Tags our requests, see {@link ImageLoader#pauseGroup(Object)}. Our Context if null */
+	private Object mRequestGroup;
+	/** The bitmap we hold a reference on in the cache's bitmap pool */
+	private Bitmap mDisplayedBitmap;
+	/** The pending request for mUrl, if any */
+	private WebImageLoaderHandler mRequest;
+	private ImageLoadedCallback mCallback;
+	/** Whether the request was cancelled on detach and should be restarted on attach */
+	private boolean mReloadOnAttach;
+	private boolean mAutoSize;
+	/** Whether loadImage() is waiting for us to be laid out */
+	private boolean mLoadOnLayout;
 
 	public WebImageView(Context context, AttributeSet attributes) {
 		super(context, attributes);
@@ -80,6 +95,7 @@ public class WebImageView extends ImageView {
 		mSavePermanently = array.getBoolean(R.styleable.WebImageView_savePermanently, false);
 		mPriority = array.getInt(R.styleable.WebImageView_image_priority, 20);
 		mFollowCrossRedirects = array.getBoolean(R.styleable.WebImageView_followCrossRedirects, false);
+		mAutoSize = array.getBoolean(R.styleable.WebImageView_autoSize, false);
 		String url = array.getString(R.styleable.WebImageView_imageUrl);
 		boolean autoLoad = array.getBoolean(R.styleable.WebImageView_autoload, !TextUtils.isEmpty(url));
 		setImageUrl(url, autoLoad, null);
@@ -110,6 +126,27 @@ public class WebImageView extends ImageView {
 		mPriority = TimeUnit.MILLISECONDS.convert(priority, TimeUnit.SECONDS);
 	}
 
+	/**
+	 * Sets the group our requests belong to, so they can be paused, resumed
+	 * or cancelled together, see {@link ImageLoader#pauseGroup(Object)}.
+	 * @param group a Fragment or any other tag, or null for our Context
+	 */
+	public void setRequestGroup(Object group) {
+		mRequestGroup = group;
+	}
+
+	/**
+	 * Sets whether images should be decoded at the size this view is laid
+	 * out at, instead of their full size, when no size is given to
+	 * setImageUrl. Loading waits until the view has been measured. Defaults
+	 * to false. Must be set before the image is loaded.
+	 *
+	 * @param autoSize
+	 */
+	public void setAutoSize(boolean autoSize) {
+		mAutoSize = autoSize;
+	}
+
 	/**
 	 * Sets the WebView's url that its content should be displayed from and
 	 * automatically download and display it.
@@ -210,10 +247,86 @@ public class WebImageView extends ImageView {
 		if (mLoadingDrawable != null) {
 			setImageDrawable(mLoadingDrawable);
 		}
+		cancelRequest();
+		mReloadOnAttach = false;
+		mLoadOnLayout = false;
 		mLoaded = false;
 		mUrl = null;
 	}
 
+	private void cancelRequest() {
+		if (mRequest != null) {
+			ImageLoader.cancel(mRequest);
+			mRequest = null;
+		}
+	}
+
+	@Override
+	protected synchronized void onDetachedFromWindow() {
+		super.onDetachedFromWindow();
+		if (mRequest != null && !mLoaded) {
+			// Nobody can see us, so stop spending time on our image
+			cancelRequest();
+			mReloadOnAttach = true;
+		}
+	}
+
+	@Override
+	protected synchronized void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if (mReloadOnAttach) {
+			mReloadOnAttach = false;
+			if (mUrl != null) {
+				loadImage(mCallback);
+			}
+		} else {
+			updateRequestPriority(isShown());
+		}
+	}
+
+	@Override
+	protected void onWindowVisibilityChanged(int visibility) {
+		super.onWindowVisibilityChanged(visibility);
+		updateRequestPriority(visibility == VISIBLE && isShown());
+	}
+
+	@Override
+	protected void onVisibilityChanged(View changedView, int visibility) {
+		// Only called from Froyo on, for us and our parents
+		super.onVisibilityChanged(changedView, visibility);
+		updateRequestPriority(isShown());
+	}
+
+	@Override
+	public void onStartTemporaryDetach() {
+		// Lists do this to views they are about to recycle
+		super.onStartTemporaryDetach();
+		updateRequestPriority(false);
+	}
+
+	@Override
+	public void onFinishTemporaryDetach() {
+		super.onFinishTemporaryDetach();
+		updateRequestPriority(isShown());
+	}
+
+	/**
+	 * Moves our pending request ahead of the older ones if we can be seen,
+	 * or behind everything if not.
+	 */
+	private synchronized void updateRequestPriority(boolean shown) {
+		if (mRequest != null) {
+			ImageLoader.setPriority(mRequest, shown ? getRequestPriority() : Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * @return The priority of a request made now. Newer requests go first.
+	 */
+	private long getRequestPriority() {
+		return (Long.MAX_VALUE - SystemClock.elapsedRealtime()) + mPriority;
+	}
+
 	/**
 	 * Load the image content. This normally doesn't need to be called unless
 	 * maybe if you wanted to retry downloading an image.
@@ -225,12 +338,77 @@ public class WebImageView extends ImageView {
 
 		if (!mLoaded) {
 			setImageDrawable(mLoadingDrawable);
-			ImageLoader.start(mUrl, mReqWidth, mReqHeight, new WebImageLoaderHandler(mUrl, this,
-					(Long.MAX_VALUE - SystemClock.elapsedRealtime()) + mPriority, callback),
+			cancelRequest();
+			mCallback = callback;
+			int reqWidth = mReqWidth;
+			int reqHeight = mReqHeight;
+			if (mAutoSize && reqWidth == 0 && reqHeight == 0) {
+				if (getWidth() == 0 || getHeight() == 0) {
+					// Come back once we know how big we are
+					mLoadOnLayout = true;
+					return;
+				}
+				reqWidth = getAutoSizeWidth();
+				reqHeight = getAutoSizeHeight();
+			}
+			mLoadOnLayout = false;
+			mRequest = new WebImageLoaderHandler(mUrl, this, getRequestPriority(), callback);
+			mRequest.setGroup(mRequestGroup != null ? mRequestGroup : getContext());
+			ImageLoader.start(mUrl, reqWidth, reqHeight, mRequest,
 					mSavePermanently, mFollowCrossRedirects);
 		}
 	}
 
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+		if (mLoadOnLayout && w > 0 && h > 0) {
+			// Don't start loading in the middle of a layout pass
+			post(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (WebImageView.this) {
+						if (mLoadOnLayout && mUrl != null) {
+							loadImage(mCallback);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return The width to decode at when auto sizing, 0 for full size.
+	 */
+	private int getAutoSizeWidth() {
+		LayoutParams params = getLayoutParams();
+		if (!isAutoSizeScaleType() || (params != null && params.width == LayoutParams.WRAP_CONTENT)) {
+			// Our size depends on the image, or the image isn't scaled to our size
+			return 0;
+		}
+		return Math.max(0, getWidth() - getPaddingLeft() - getPaddingRight());
+	}
+
+	/**
+	 * @return The height to decode at when auto sizing, 0 for full size.
+	 */
+	private int getAutoSizeHeight() {
+		LayoutParams params = getLayoutParams();
+		if (!isAutoSizeScaleType() || (params != null && params.height == LayoutParams.WRAP_CONTENT)) {
+			return 0;
+		}
+		return Math.max(0, getHeight() - getPaddingTop() - getPaddingBottom());
+	}
+
+	/**
+	 * CENTER and MATRIX draw the image at its own size, so anything we
+	 * downsample would show up smaller.
+	 */
+	private boolean isAutoSizeScaleType() {
+		ScaleType scaleType = getScaleType();
+		return scaleType != ScaleType.CENTER && scaleType != ScaleType.MATRIX;
+	}
+
 	/**
 	 * Tells the caller if the content of the image has already been downloaded
 	 * and set.
@@ -240,6 +418,13 @@ public class WebImageView extends ImageView {
 		return mLoaded;
 	}
 
+	/**
+	 * @return The request loading our image, or null if there is none.
+	 */
+	synchronized WebImageLoaderHandler getRequest() {
+		return mRequest;
+	}
+
 	/**
 	 * Directly set the image bitmap of this image and mark
 	 * loading as complete for the case of a cache hit.
@@ -249,6 +434,42 @@ public class WebImageView extends ImageView {
 		mLoaded = finished;
 	}
 
+	@Override
+	public void setImageDrawable(Drawable drawable) {
+		super.setImageDrawable(drawable);
+		Bitmap bitmap = null;
+		if (drawable instanceof BitmapDrawable) {
+			bitmap = ((BitmapDrawable) drawable).getBitmap();
+		}
+		updateDisplayedBitmap(bitmap);
+	}
+
+	@Override
+	public void setImageResource(int resId) {
+		super.setImageResource(resId);
+		updateDisplayedBitmap(null);
+	}
+
+	@Override
+	public void setImageURI(Uri uri) {
+		super.setImageURI(uri);
+		updateDisplayedBitmap(null);
+	}
+
+	/**
+	 * Keeps the bitmap we're drawing from being reused by the decoder
+	 * and lets go of the one we drew before.
+	 */
+	private void updateDisplayedBitmap(Bitmap bitmap) {
+		ImageCache cache = ImageLoader.imageCache;
+		if (bitmap == mDisplayedBitmap || cache == null) {
+			return;
+		}
+		cache.acquire(bitmap);
+		cache.release(mDisplayedBitmap);
+		mDisplayedBitmap = bitmap;
+	}
+
 	/**
 	 * Image loader handler that makes sure the image's URL matches the image
 	 * being applied, to ensure an ImageView isn't set with a stale image.
@@ -274,7 +495,14 @@ public class WebImageView extends ImageView {
 				return;
 			}
 			synchronized (view) {
-				if (mUrl.equals(view.mUrl)) {
+				if (view.mRequest == this) {
+					view.mRequest = null;
+					if (msg.what == ImageLoader.HANDLER_MESSAGE_DROPPED) {
+						// Try again when we next come on screen
+						view.mReloadOnAttach = true;
+					}
+				}
+				if (msg.what == ImageLoader.HANDLER_MESSAGE_ID && mUrl.equals(view.mUrl)) {
 					// This will actually do the image redraw.
 					super.handleMessage(msg);
 					view.mLoaded = true;
@@ -285,6 +513,19 @@ public class WebImageView extends ImageView {
 				}
 			}
 		}
+
+		@Override
+		public void dispatchMessage(Message msg) {
+			try {
+				super.dispatchMessage(msg);
+			} finally {
+				if (msg.what == ImageLoader.HANDLER_MESSAGE_ID && ImageLoader.imageCache != null) {
+					// Let go of the reference ImageLoader took for delivering this bitmap
+					Bitmap bitmap = msg.getData().getParcelable(ImageLoader.BITMAP_EXTRA);
+					ImageLoader.imageCache.release(bitmap);
+				}
+			}
+		}
 	}
 
 	public interface ImageLoadedCallback {